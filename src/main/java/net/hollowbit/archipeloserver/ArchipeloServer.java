@@ -13,6 +13,10 @@ import net.hollowbit.archipeloserver.tools.event.EventManager;
 import net.hollowbit.archipeloserver.tools.executables.ExecutableManager;
 import net.hollowbit.archipeloserver.tools.log.Logger;
 import net.hollowbit.archipeloserver.tools.npcdialogs.GlobalNpcDialogManager;
+import net.hollowbit.archipeloserver.tools.persistence.PersistenceManager;
+import net.hollowbit.archipeloserver.tools.profiler.TickProfiler;
+import net.hollowbit.archipeloserver.tools.tick.GameLoop;
+import net.hollowbit.archipeloserver.tools.tick.TickWatchdog;
 import net.hollowbit.archipeloserver.world.MapElementManager;
 import net.hollowbit.archipeloserver.world.World;
 
@@ -36,6 +40,7 @@ public class ArchipeloServer {
 	private NetworkManager networkManager;
 	private MapElementManager mapElementManager;
 	private DatabaseManager databaseManager;
+	private PersistenceManager persistenceManager;
 	private Configuration config;
 	private HollowBitServerConnectivity hollowBitServerConnectivity;
 	private ConditionManager conditionManager;
@@ -45,18 +50,23 @@ public class ArchipeloServer {
 	private GlobalNpcDialogManager npcDialogManager;
 	private Logger logger;
 	private World world;
-	private Thread tick20;
-	private Thread tick60;
-	private boolean running = true;
+	private GameLoop gameLoop;
+	private TickProfiler tickProfiler;
+	private TickWatchdog tickWatchdog;
 	
 	public ArchipeloServer () {
 		server = this;
 		logger = new Logger();
 		config = new Configuration();
+		tickProfiler = new TickProfiler(config.profilerEnabled);
+		tickWatchdog = new TickWatchdog(config.watchdogThresholdMillis, config.watchdogDumpAllThreads);
+		tickWatchdog.start();
 		networkManager = new NetworkManager(22122);
 		networkManager.start();
 		databaseManager = new DatabaseManager();
 		databaseManager.start();
+		persistenceManager = new PersistenceManager();
+		persistenceManager.start();
 		try {
 			hollowBitServerConnectivity = new HollowBitServerConnectivity();
 			if (!hollowBitServerConnectivity.connectToServer()) {
@@ -80,59 +90,10 @@ public class ArchipeloServer {
 		world = new World();
 		mapElementManager = new MapElementManager();
 		mapElementManager.loadMapElements();
+		world.prewarmMaps();
 		
-		tick20 = new Thread(new Runnable() {
-
-			@Override
-			public synchronized void run() {
-				long startTime = System.currentTimeMillis();
-				
-				while (running) {
-					//float deltaTime = (System.currentTimeMillis() - startTime) / 1000f;
-					startTime = System.currentTimeMillis();
-					
-					world.tick20(TICK20);
-					long timeToSleep = (long) (TICK20 * 1000 - (System.currentTimeMillis() - startTime));
-					if (timeToSleep >= 0) {
-						try {
-							Thread.sleep(timeToSleep);
-						} catch (InterruptedException e) {}
-					} else {
-						logger.caution("Server is running " + Math.abs(timeToSleep) + "ms behind.");
-					}
-				}
-			}
-			
-		});
-		tick20.start();
-		
-		tick60 = new Thread(new Runnable() {
-
-			@Override
-			public synchronized void run() {
-				long startTime = System.currentTimeMillis();
-				
-				while (running) {
-					//float deltaTime = (System.currentTimeMillis() - startTime) / 1000f;
-					startTime = System.currentTimeMillis();
-					
-					STATETIME += TICK60;
-					
-					networkManager.update();
-					world.tick60(TICK60);
-					long timeToSleep = (long) (TICK60 * 1000 - (System.currentTimeMillis() - startTime));
-					if (timeToSleep >= 0) {
-						try {
-							Thread.sleep(timeToSleep);
-						} catch (InterruptedException e) {}
-					} else {
-						logger.caution("Server is running " + Math.abs(timeToSleep) + "ms behind.");
-					}
-				}
-			}
-			
-		});
-		tick60.start();
+		gameLoop = new GameLoop();
+		gameLoop.start();
 		
 		logger.info("Server Started!");
 	}
@@ -149,6 +110,22 @@ public class ArchipeloServer {
 		return databaseManager;
 	}
 	
+	public PersistenceManager getPersistenceManager () {
+		return persistenceManager;
+	}
+	
+	public GameLoop getGameLoop () {
+		return gameLoop;
+	}
+	
+	public TickProfiler getTickProfiler () {
+		return tickProfiler;
+	}
+	
+	public TickWatchdog getTickWatchdog () {
+		return tickWatchdog;
+	}
+	
 	public Configuration getConfig () {
 		return config;
 	}
@@ -190,13 +167,14 @@ public class ArchipeloServer {
 		databaseManager.stop();
 		hollowBitServerConnectivity.sendRemoveServerQuery();
 		hollowBitServerConnectivity.close();
-		running = false;
-		try {
-			if (tick20 != null && tick60 != null) {
-				tick20.join();
-				tick60.join();
-			}
-		} catch (InterruptedException e) {}
+		if (gameLoop != null)
+			gameLoop.stop();
+		if (world != null)
+			world.stop();
+		tickWatchdog.stop();
+		if (eventManager != null)
+			eventManager.stop();
+		persistenceManager.stop();
 		logger.save();
 		config.save();
 	}
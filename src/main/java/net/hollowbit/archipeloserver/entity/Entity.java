@@ -11,10 +11,12 @@ import net.hollowbit.archipeloserver.network.packets.PopupTextPacket;
 import net.hollowbit.archipeloserver.network.packets.TeleportPacket;
 import net.hollowbit.archipeloserver.particles.types.HealthParticles;
 import net.hollowbit.archipeloserver.tools.entity.Location;
+import net.hollowbit.archipeloserver.tools.event.EventType;
 import net.hollowbit.archipeloserver.tools.event.events.editable.EntityDeathEvent;
 import net.hollowbit.archipeloserver.tools.event.events.editable.EntityHealEvent;
 import net.hollowbit.archipeloserver.tools.event.events.editable.EntityInteractionEvent;
 import net.hollowbit.archipeloserver.tools.event.events.editable.EntityTeleportEvent;
+import net.hollowbit.archipeloserver.tools.tick.GameLoop;
 import net.hollowbit.archipeloserver.world.Map;
 import net.hollowbit.archipeloserver.world.World;
 import net.hollowbit.archipeloshared.CollisionRect;
@@ -25,17 +27,30 @@ import net.hollowbit.archipeloshared.Point;
 public abstract class Entity {
 
 	public static final float DAMAGE_FLASH_DURATION = 0.2f;
+	public static final int DORMANT_TICK_INTERVAL = 10;//Dormant entities catch up on the skipped time every this many tick20s
+	public static final int MAX_CATCH_UP_STEPS = 60;//Most tick60s or tick20s replayed by one catch up. Longer gaps are replayed in longer steps
+	public static final float WAKE_DURATION = 5;//Seconds an entity stays awake after being interacted with, even if no player is near
 	
 	protected String name;
+	protected int handle = EntityHandles.NO_HANDLE;
+	private volatile boolean removed = false;
 	protected EntityType entityType;
 	protected int style;
 	protected Location location;
 	protected EntitySnapshot changes;
 	protected EntityLog log;
+	private Vector2 rewindPosition = new Vector2();//Reused for log lookups
+	private CollisionRect[] collisionRects;//Rects at the current position, only moved once the entity has
+	private float collisionRectsX = Float.NaN, collisionRectsY = Float.NaN;
+	private CollisionRect[] probeRects;//Rects at any other position, reused by every probe
 	protected EntityAnimationManager animationManager;
 	protected ArrayList<EntityComponent> components;
 	protected EntityAudioManager audioManager;
 	protected float health;
+	protected boolean dormant = false;
+	private float skippedTime20 = 0, skippedTime60 = 0;
+	private int dormantTicks = 0;
+	private float wakeTimer = 0;
 	
 	public Entity () {
 		components = new ArrayList<EntityComponent>();
@@ -88,21 +103,131 @@ public abstract class Entity {
 	
 	public void tick20 (float deltaTime) {
 		animationManager.update(deltaTime);
-		log.removeOldEntitySnapshotsFromLog();
 		
 		for (EntityComponent component : components)
 			component.tick20(deltaTime);
 	}
 	
 	public void tick60 (float deltaTime) {
-		log.addEntry(new EntityLogEntry(location.getX(), location.getY(), getSpeed()));
+		log.addEntry(location.getX(), location.getY(), getSpeed());
 		
 		for (EntityComponent component : components)
 			component.tick60(deltaTime);
 	}
 	
+	/**
+	 * Called by the map 20 times per second instead of tick20. Ticks normally while awake.
+	 * While dormant, the time is saved up and the entity is only ticked every DORMANT_TICK_INTERVAL ticks, catching up on all of the saved time at once, so timers stay correct.
+	 * @param deltaTime
+	 * @param nearPlayer Whether the entity is in a chunk close to a player
+	 */
+	public void mapTick20 (float deltaTime, boolean nearPlayer) {
+		if (wakeTimer > 0)
+			wakeTimer -= deltaTime;
+		
+		if (nearPlayer || wakeTimer > 0 || !canBeDormant()) {
+			if (dormant) {
+				dormant = false;
+				catchUp();
+			}
+			tick20(deltaTime);
+			return;
+		}
+		
+		dormant = true;
+		skippedTime20 += deltaTime;
+		dormantTicks++;
+		if (dormantTicks >= DORMANT_TICK_INTERVAL)
+			catchUp();
+	}
+	
+	/**
+	 * Called by the map 60 times per second instead of tick60. Dormant entities save up the time for their next catch up tick.
+	 * @param deltaTime
+	 */
+	public void mapTick60 (float deltaTime) {
+		if (dormant)
+			skippedTime60 += deltaTime;
+		else
+			tick60(deltaTime);
+	}
+	
+	/**
+	 * Ticks this entity with all of the time it skipped while dormant.
+	 * The time is replayed in steps of a normal tick, interleaved like the game loop does, so moves are collision checked
+	 * along the way and repeating timers fire as often as they would have.
+	 */
+	private void catchUp () {
+		int steps60 = getCatchUpSteps(skippedTime60, ArchipeloServer.TICK60);
+		int steps20 = getCatchUpSteps(skippedTime20, ArchipeloServer.TICK20);
+		float delta60 = steps60 == 0 ? 0 : skippedTime60 / steps60;
+		float delta20 = steps20 == 0 ? 0 : skippedTime20 / steps20;
+		skippedTime60 = 0;
+		skippedTime20 = 0;
+		dormantTicks = 0;
+		
+		int ticked20 = 0;
+		for (int i = 1; i <= steps60; i++) {
+			tick60(delta60);
+			if (i % GameLoop.SUB_TICKS_PER_TICK20 == 0 && ticked20 < steps20) {
+				tick20(delta20);
+				ticked20++;
+			}
+		}
+		for (; ticked20 < steps20; ticked20++)
+			tick20(delta20);
+	}
+	
+	/**
+	 * Number of ticks of tickDuration that make up the given time, at most MAX_CATCH_UP_STEPS.
+	 * @param time
+	 * @param tickDuration
+	 * @return
+	 */
+	private int getCatchUpSteps (float time, float tickDuration) {
+		if (time <= 0)
+			return 0;
+		
+		int steps = (int) Math.ceil(time / tickDuration - 0.01f);//Saved up time is a sum of ticks, so ignore rounding errors
+		return Math.max(1, Math.min(MAX_CATCH_UP_STEPS, steps));
+	}
+	
+	/**
+	 * Removes expired entries from the position log. Called regularly by the map.
+	 */
+	public void removeOldLogEntries () {
+		log.removeOldEntitySnapshotsFromLog();
+	}
+	
+	/**
+	 * Keeps this entity awake for WAKE_DURATION seconds even if no player is near.
+	 * It will catch up on the time it skipped on its next tick.
+	 */
+	public void wakeUp () {
+		wakeTimer = WAKE_DURATION;
+	}
+	
+	public boolean isDormant () {
+		return dormant;
+	}
+	
+	/**
+	 * Whether this entity may stop being ticked when no player is near. Players never are.
+	 * @return
+	 */
+	public boolean canBeDormant () {
+		return !isPlayer();
+	}
+	
 	protected void interactWith (Entity target, String theirCollisionRectName, String yourCollisionRectName, EntityInteractionType interactionType) {
-		EntityInteractionEvent event = new EntityInteractionEvent(this, target, theirCollisionRectName, yourCollisionRectName, interactionType);
+		this.wakeUp();
+		target.wakeUp();
+		if (!ArchipeloServer.getServer().getEventManager().hasHandlers(EventType.EntityInteraction)) {//Nobody is listening, so don't bother with the event
+			target.interactFrom(this, theirCollisionRectName, yourCollisionRectName, interactionType);
+			return;
+		}
+		
+		EntityInteractionEvent event = EntityInteractionEvent.obtain(this, target, theirCollisionRectName, yourCollisionRectName, interactionType);
 		event.trigger();
 		
 		if (!event.wasCancelled())
@@ -124,6 +249,7 @@ public abstract class Entity {
 		if (style < entityType.getNumberOfStyles()) {
 			this.style = style;
 			this.changes.putInt("style", style);
+			location.getMap().markChunkDirty(this);
 		}
 	}
 	
@@ -132,15 +258,67 @@ public abstract class Entity {
 	}
 	
 	/**
-	 * Proper way to remove an entity.
+	 * Proper way to remove an entity. Must be called on the thread of its map, see postToMap().
 	 */
 	public void remove () {
+		removed = true;
 		location.getMap().removeEntityUnsafe(this);
+		releaseHandle();
 		
 		for (EntityComponent component : components)
 			component.remove();
 	}
 	
+	/**
+	 * Whether this entity was removed. Tasks posted to add it to a map check this, since it may be removed before they run.
+	 * @return
+	 */
+	public boolean isRemoved () {
+		return removed;
+	}
+	
+	/**
+	 * Runs a task on the thread of the map this entity is on. If the entity moves to another map before it runs, the task follows it there.
+	 * Use it for anything that changes this entity or its map from another thread, like removing a player that logged out.
+	 * @param task
+	 */
+	public void postToMap (final Runnable task) {
+		final Map map = location.getMap();
+		ArchipeloServer.getServer().getWorld().post(map, new Runnable() {
+			
+			@Override
+			public void run() {
+				if (location.getMap() != map) {//Teleported in the meantime
+					postToMap(task);
+					return;
+				}
+				task.run();
+			}
+			
+		});
+	}
+	
+	/**
+	 * Gives this entity a handle if it doesn't have one yet. Called by the map when the entity is added.
+	 */
+	public void assignHandle () {
+		if (handle == EntityHandles.NO_HANDLE)
+			handle = ArchipeloServer.getServer().getWorld().getEntityHandles().allocate();
+	}
+	
+	private void releaseHandle () {
+		ArchipeloServer.getServer().getWorld().getEntityHandles().free(handle);
+		handle = EntityHandles.NO_HANDLE;
+	}
+	
+	/**
+	 * Int that identifies this entity in packets and entity managers while it is in the world.
+	 * @return
+	 */
+	public int getHandle () {
+		return handle;
+	}
+	
 	/**
 	 * This is used by certain entities which don't always want a collision rect to be hard.
 	 * Ex: Like a locked door that becomes unlocked for some players.
@@ -184,6 +362,7 @@ public abstract class Entity {
 	 */
 	public EntitySnapshot getFullSnapshot () {
 		EntitySnapshot snapshot = new EntitySnapshot(this.name, this.entityType.getId(), false);
+		snapshot.putInt("handle", handle);
 		snapshot.putObject("pos", new Point(this.getX(), this.getY()));
 		snapshot.putInt("direction", this.getLocation().getDirectionInt());
 		snapshot.putInt("style", style);
@@ -246,7 +425,7 @@ public abstract class Entity {
 	public void teleport (float x, float y, Direction direction, String mapName) {
 		Vector2 newPos = new Vector2(x, y);
 		
-		EntityTeleportEvent event = new EntityTeleportEvent(this, newPos, location.pos, location.map, mapName, location.getDirection(), direction);
+		EntityTeleportEvent event = new EntityTeleportEvent(this, newPos, location.getPosition(), location.map, mapName, location.getDirection(), direction);
 		event.trigger();
 		if (event.wasCancelled()) {
 			event.close();
@@ -264,36 +443,56 @@ public abstract class Entity {
 		Map map = null;
 		
 		if (mapChanged) {
-			if (!world.isMapLoaded(mapName)) {
-				if (!world.loadMap(mapName)) {
-					if (isPlayer()) {
-						Player p = (Player) this;
-						p.sendPacket(new PopupTextPacket("Unable to teleport.", PopupTextPacket.Type.NORMAL));
-						event.cancel();
-						event.close();
-						return;
-					}
+			map = world.getMapForArrival(mapName);
+			if (map == null) {
+				if (isPlayer()) {
+					Player p = (Player) this;
+					p.sendPacket(new PopupTextPacket("Unable to teleport.", PopupTextPacket.Type.NORMAL));
 				}
+				event.cancel();
+				event.close();
+				return;
 			}
-			map = world.getMap(mapName);
 			
-			//Add player to other map then remove it from current
-			map.addEntity(this);
+			//Remove entity from current map here, then add it to the other map on that map's own thread
 			location.getMap().removeEntityUnsafe(this);
 			location.setMap(map);
-		} else
+		} else {
 			map = location.getMap();
+			map.markChunkDirty(this);
+		}
 		
 		newPos.add(-this.entityType.getFootstepOffsetX(), -this.entityType.getFootstepOffsetY());
 		location.set(newPos);
 		location.setDirection(direction);
-		
-		for (Player player : location.getMap().duplicatePlayerList()) {
-			player.sendPacket(new TeleportPacket(this.name, newPos.x, newPos.y, this.location.getDirectionInt(), mapChanged));
-		}
-		
 		log.clearAll();
 		event.close();
+		
+		if (mapChanged) {
+			final Map newMap = map;
+			world.post(newMap, new Runnable() {
+				
+				@Override
+				public void run() {
+					if (!isRemoved()) {//May have been removed while on its way, like a player logging out
+						newMap.addEntity(Entity.this);
+						sendTeleportPacket(newMap, true);
+					}
+					newMap.endArrival();
+				}
+				
+			});
+		} else {
+			map.updateEntityPosition(this);
+			map.markChunkDirty(this);
+			sendTeleportPacket(map, false);
+		}
+	}
+	
+	private void sendTeleportPacket (Map map, boolean mapChanged) {
+		TeleportPacket packet = new TeleportPacket(this.name, location.getX(), location.getY(), location.getDirectionInt(), mapChanged);
+		for (Player player : map.getPlayers())
+			player.sendPacket(packet);
 	}
 	
 	/**
@@ -358,18 +557,24 @@ public abstract class Entity {
 	 * @return Whether entity died
 	 */
 	public boolean heal(float amount, Entity healer) {
-		EntityHealEvent eventHeal = new EntityHealEvent(amount, this, healer);
-		eventHeal.trigger();
-		
-		if (eventHeal.wasCancelled()) {
+		if (ArchipeloServer.getServer().getEventManager().hasHandlers(EventType.EntityHeal)) {
+			EntityHealEvent eventHeal = EntityHealEvent.obtain(amount, this, healer);
+			eventHeal.trigger();
+			
+			if (eventHeal.wasCancelled()) {
+				eventHeal.close();
+				return false;
+			}
+			
+			amount = eventHeal.getAmount();
+			healer = eventHeal.getHealer();
 			eventHeal.close();
-			return false;
 		}
 		
+		wakeUp();
 		float oldHealth = this.health;
-		this.health += eventHeal.getAmount();
-		healer = eventHeal.getHealer();
-		eventHeal.close();
+		this.health += amount;
+		location.getMap().markChunkDirty(this);
 		
 		location.map.spawnParticles(new HealthParticles(this, (int) amount));
 		
@@ -406,33 +611,56 @@ public abstract class Entity {
 	}
 	
 	/**
-	 * Returns array of all collisions rects for this entity
+	 * Returns array of all collisions rects for this entity.
+	 * The same array is returned until the entity moves, so don't modify it.
 	 * @return
 	 */
 	public CollisionRect[] getCollisionRects () {
-		return entityType.getCollisionRects(location.getX(), location.getY());
+		if (collisionRects == null)
+			collisionRects = entityType.createCollisionRects();
+		
+		if (location.getX() != collisionRectsX || location.getY() != collisionRectsY) {
+			collisionRectsX = location.getX();
+			collisionRectsY = location.getY();
+			entityType.moveCollisionRects(collisionRects, collisionRectsX, collisionRectsY);
+		}
+		return collisionRects;
 	}
 	
 	/**
 	 * Get collision rects of this entity considering it were at a specified position.
+	 * The same array is reused by the next call to this or the other probe methods, so don't keep it.
 	 * @param potentialPosition
 	 * @return
 	 */
 	public CollisionRect[] getCollisionRects (Vector2 potentialPosition) {
-		return entityType.getCollisionRects(potentialPosition.x, potentialPosition.y);
+		return getCollisionRects(potentialPosition.x, potentialPosition.y);
+	}
+	
+	/**
+	 * Get collision rects of this entity considering it were at a specified position.
+	 * The same array is reused by the next call to this or the other probe methods, so don't keep it.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public CollisionRect[] getCollisionRects (float x, float y) {
+		if (probeRects == null)
+			probeRects = entityType.createCollisionRects();
+		return entityType.moveCollisionRects(probeRects, x, y);
 	}
 	
 	/**
 	 * Get entity collision rects at a certain point in time. Maximum 2 seconds ago.
+	 * Uses the probe rects unless the current position is used, so don't keep it.
 	 * @param time
 	 * @return
 	 */
 	public CollisionRect[] getCollisionRects (long time) {
-		Vector2 pos = log.getPositionAtTimestamp(time);
-		if (pos == null)
-			return getCollisionRects();
+		if (log.getPositionAtTimestamp(time, rewindPosition))
+			return getCollisionRects(rewindPosition);
 		else
-			return getCollisionRects(pos);
+			return getCollisionRects();
 	}
 	
 	/**
@@ -473,10 +701,11 @@ public abstract class Entity {
 	 * @param newDirection
 	 */
 	public void setDirection(Direction newDirection) {
-		Direction oldDirection = location.direction;
+		Direction oldDirection = location.getDirection();
 		if (newDirection != oldDirection) {
-			location.direction = newDirection;
+			location.setDirection(newDirection);
 			changes.putInt("direction", location.getDirectionInt());
+			location.getMap().markChunkDirty(this);
 		}
 	}
 	
@@ -492,13 +721,4 @@ public abstract class Entity {
 		return location.getY() + entityType.getViewHeight() - entityType.getHeadOffsetFromTop();
 	}
 	
-	@Override
-	public boolean equals(Object obj) {
-		if (!(obj instanceof Entity))
-			return false;
-		
-		Entity entity = (Entity) obj;
-		return entity.name.equals(this.name);
-	}
-	
 }
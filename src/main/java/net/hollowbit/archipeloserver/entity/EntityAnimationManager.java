@@ -7,6 +7,7 @@ public class EntityAnimationManager {
 	
 	private Entity entity;
 	private EntityAnimationData data;
+	private int index;//Index of the animation in the entity type
 	private String id;
 	private float stateTime;
 	private String meta;
@@ -26,7 +27,12 @@ public class EntityAnimationManager {
 		} else
 			this.id = animationId;
 		
-		this.data = entity.getEntityType().getAnimationDataById(id);
+		this.index = entity.getEntityType().getAnimationIndex(id);
+		if (index == EntityType.NO_ANIMATION) {//Saved animation doesn't exist anymore
+			this.id = entity.getEntityType().getDefaultAnimationId();
+			this.index = entity.getEntityType().getAnimationIndex(id);
+		}
+		this.data = entity.getEntityType().getAnimationData(index);
 		this.animationLength = data.totalRuntime;
 		this.meta = animationMeta;
 		this.stateTime = animTime;
@@ -56,12 +62,19 @@ public class EntityAnimationManager {
 	 * @param animationId
 	 */
 	public void changeWithoutReset(String animationId) {
-		if (entity.getEntityType().hasAnimation(animationId)) {
-			if (!this.id.equals(animationId)) {//Only apply if the animation id changed, otherwise there is no point
-				this.id = animationId;
-				this.data = entity.getEntityType().getAnimationDataById(animationId);
-				applyToEntityChanges(animationId, meta, animationLength, false);
-			}
+		changeWithoutReset(entity.getEntityType().getAnimationIndex(animationId));
+	}
+	
+	/**
+	 * Will change the animation without reseting the statetime, meta and custom length.
+	 * @param animationIndex Index from EntityType.getAnimationIndex
+	 */
+	public void changeWithoutReset(int animationIndex) {
+		if (animationIndex != EntityType.NO_ANIMATION && animationIndex != this.index) {//Only apply if the animation changed, otherwise there is no point
+			this.index = animationIndex;
+			this.data = entity.getEntityType().getAnimationData(animationIndex);
+			this.id = data.id;
+			applyToEntityChanges(id, meta, animationLength, false);
 		}
 	}
 	
@@ -73,25 +86,47 @@ public class EntityAnimationManager {
 		this.change(animationId, "");
 	}
 	
+	/**
+	 * Change entity's animation.
+	 * @param animationIndex Index from EntityType.getAnimationIndex
+	 */
+	public void change (int animationIndex) {
+		this.change(animationIndex, "");
+	}
+	
 	/**
 	 * Change entity's animation.
 	 * @param animationId
 	 * @param animationMeta
 	 */
 	public void change (String animationId, String animationMeta) {
-		if (entity.getEntityType().hasAnimation(animationId))//Needs to be checked here since we use it below
-			this.change(animationId, animationMeta, entity.getEntityType().getAnimationDataById(animationId).totalRuntime, false, false);
+		this.change(entity.getEntityType().getAnimationIndex(animationId), animationMeta);
+	}
+	
+	/**
+	 * Change entity's animation.
+	 * @param animationIndex Index from EntityType.getAnimationIndex
+	 * @param animationMeta
+	 */
+	public void change (int animationIndex, String animationMeta) {
+		if (animationIndex != EntityType.NO_ANIMATION)//Needs to be checked here since we use it below
+			this.change(animationIndex, animationMeta, entity.getEntityType().getAnimationData(animationIndex).totalRuntime, false, false);
 	}
 	
 	public void change (String animationId, String animationMeta, float customAnimationLength, boolean stickOnLastFrame, boolean canEndEarly) {
+		this.change(entity.getEntityType().getAnimationIndex(animationId), animationMeta, customAnimationLength, stickOnLastFrame, canEndEarly);
+	}
+	
+	public void change (int animationIndex, String animationMeta, float customAnimationLength, boolean stickOnLastFrame, boolean canEndEarly) {
 		//Make sure this entity has this animation
-		if (entity.getEntityType().hasAnimation(animationId)) {
+		if (animationIndex != EntityType.NO_ANIMATION) {
 			boolean reset = false;
 			boolean changed = false;
-			if (!animationId.equals(id)) {
+			if (animationIndex != index) {
 				this.stateTime = 0;
-				this.id = animationId;
-				this.data = entity.getEntityType().getAnimationDataById(animationId);
+				this.index = animationIndex;
+				this.data = entity.getEntityType().getAnimationData(animationIndex);
+				this.id = data.id;
 				reset = true;
 				changed = true;
 			}
@@ -108,7 +143,7 @@ public class EntityAnimationManager {
 			this.canEndEarly = canEndEarly;
 			
 			if (changed)//Only update client if there was a change made
-				applyToEntityChanges(animationId, animationMeta, customAnimationLength, reset);
+				applyToEntityChanges(id, animationMeta, customAnimationLength, reset);
 		}
 	}
 	
@@ -151,6 +186,14 @@ public class EntityAnimationManager {
 		return id;
 	}
 	
+	/**
+	 * Index of the current animation in the entity type. Compare with indices from EntityType.getAnimationIndex instead of comparing ids.
+	 * @return
+	 */
+	public int getAnimationIndex () {
+		return index;
+	}
+	
 	public float getStateTime() {
 		return stateTime;
 	}
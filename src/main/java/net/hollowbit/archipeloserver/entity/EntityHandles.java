@@ -0,0 +1,63 @@
+package net.hollowbit.archipeloserver.entity;
+
+/**
+ * Hands out the int handles that entities are referred to by in entity managers and packets.
+ * Handles are dense, starting at 0. Freed handles are only reused once they were free for QUARANTINE_MILLIS,
+ * so clients have long received the EntityRemovePacket of the old entity before a new one gets its handle.
+ * @author vedi0boy
+ *
+ */
+public class EntityHandles {
+	
+	public static final int NO_HANDLE = -1;
+	public static final long QUARANTINE_MILLIS = 5000;//Time a freed handle waits before it is given out again
+	
+	private int nextHandle = 0;
+	
+	//Ring buffer of freed handles and when they were freed, oldest first
+	private int[] freeHandles;
+	private long[] freeTimes;
+	private int head = 0;
+	private int count = 0;
+	
+	public EntityHandles () {
+		freeHandles = new int[64];
+		freeTimes = new long[64];
+	}
+	
+	public synchronized int allocate () {
+		if (count > 0 && System.currentTimeMillis() - freeTimes[head] >= QUARANTINE_MILLIS) {
+			int handle = freeHandles[head];
+			head = (head + 1) % freeHandles.length;
+			count--;
+			return handle;
+		}
+		return nextHandle++;
+	}
+	
+	public synchronized void free (int handle) {
+		if (handle == NO_HANDLE)
+			return;
+		
+		if (count == freeHandles.length)
+			grow();
+		
+		int tail = (head + count) % freeHandles.length;
+		freeHandles[tail] = handle;
+		freeTimes[tail] = System.currentTimeMillis();
+		count++;
+	}
+	
+	private void grow () {
+		int[] newHandles = new int[freeHandles.length * 2];
+		long[] newTimes = new long[freeTimes.length * 2];
+		for (int i = 0; i < count; i++) {
+			newHandles[i] = freeHandles[(head + i) % freeHandles.length];
+			newTimes[i] = freeTimes[(head + i) % freeTimes.length];
+		}
+		freeHandles = newHandles;
+		freeTimes = newTimes;
+		head = 0;
+	}
+
+}
@@ -1,100 +1,105 @@
 package net.hollowbit.archipeloserver.entity;
 
-import java.util.ArrayList;
-
 import com.badlogic.gdx.math.Vector2;
 
 import net.hollowbit.archipeloserver.tools.StaticTools;
 
+/**
+ * Recent positions of an entity, used to rewind it for lag compensation.
+ * Stored in a fixed size ring of parallel arrays, oldest first, so adding and expiring entries never allocates.
+ * @author vedi0boy
+ *
+ */
 public class EntityLog {
 	
 	public static final int ENTRY_LIFETIME = 2000;//Milliseconds until snapshot is dumped.
+	private static final int CAPACITY = 128;//Enough for ENTRY_LIFETIME worth of 60Hz entries. Must be a power of 2
+	private static final int MASK = CAPACITY - 1;
 	
-	ArrayList<EntityLogEntry> logEntries;
+	private long[] times;
+	private float[] xs, ys, speeds;
+	private int head = 0;//Index of oldest entry
+	private int count = 0;
 	
 	public EntityLog () {
-		logEntries = new ArrayList<EntityLogEntry>();
-	}
-	
-	public synchronized void addEntry (EntityLogEntry entry) {
-		logEntries.add(entry);
+		times = new long[CAPACITY];
+		xs = new float[CAPACITY];
+		ys = new float[CAPACITY];
+		speeds = new float[CAPACITY];
 	}
 	
-	private synchronized EntityLogEntry getBefore (long millis) {
-		if (logEntries.isEmpty())
-			return null;
-		
-		EntityLogEntry closest = null;
-		for (EntityLogEntry entry : logEntries) {
-			if (entry.creationTime > millis)
-				continue;
-			
-			if (closest == null)
-				closest = entry;
-			else {
-				if (entry.creationTime > closest.creationTime)
-					closest = entry;
-			}
+	/**
+	 * Adds the position of the entity now. If the log is full, the oldest entry is dropped.
+	 * @param x
+	 * @param y
+	 * @param speed
+	 */
+	public synchronized void addEntry (float x, float y, float speed) {
+		if (count == CAPACITY) {
+			head = (head + 1) & MASK;
+			count--;
 		}
-		return closest;
-	}
-	
-	private synchronized EntityLogEntry getAfter (long millis) {
-		if (logEntries.isEmpty())
-			return null;
 		
-		EntityLogEntry closest = null;
-		for (EntityLogEntry entry : logEntries) {
-			if (entry.creationTime <= millis)
-				continue;
-			
-			if (closest == null)
-				closest = entry;
-			else {
-				if (entry.creationTime > closest.creationTime)
-					closest = entry;
-			}
-		}
-		return closest;
+		int index = (head + count) & MASK;
+		times[index] = System.currentTimeMillis();
+		xs[index] = x;
+		ys[index] = y;
+		speeds[index] = speed;
+		count++;
 	}
 	
 	/**
-	 * Returns the interpolated position of this entity at the specified timestamp.
-	 * Will return null if not enough entries have been recorded so far, or if the specified time is older than 2 seconds.
+	 * Finds the position of the first entry newer than the given time, counting from the oldest entry.
+	 * Returns count if there is none.
 	 * @param millis
 	 * @return
 	 */
-	public Vector2 getPositionAtTimestamp (long millis) {
-		EntityLogEntry entryBefore = this.getBefore(millis);
-		EntityLogEntry entryAfter = this.getAfter(millis);
-		
-		//If either is null, use current position instead
-		if (entryBefore == null || entryAfter == null)
-			return null;
-		
-		float fraction = this.getFraction(entryBefore, entryAfter, millis);
-		float x = StaticTools.singleDimensionLerp(entryBefore.x, entryAfter.x, fraction);
-		float y = StaticTools.singleDimensionLerp(entryBefore.y, entryAfter.y, fraction);
-		
-		return new Vector2(x, y);
+	private int findFirstAfter (long millis) {
+		int low = 0, high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (times[(head + middle) & MASK] <= millis)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
 	}
 	
-	private float getFraction (EntityLogEntry entryBefore, EntityLogEntry entryAfter, long millis) {
-		return StaticTools.singleDimentionLerpFraction(entryBefore.creationTime, entryAfter.creationTime, millis);
+	/**
+	 * Gets the interpolated position of this entity at the specified timestamp.
+	 * Will return false if not enough entries have been recorded around that time, or if it is older than 2 seconds.
+	 * @param millis
+	 * @param result Where the position is written to
+	 * @return Whether a position was found
+	 */
+	public synchronized boolean getPositionAtTimestamp (long millis, Vector2 result) {
+		int after = findFirstAfter(millis);
+		if (after == 0 || after == count)
+			return false;
+		
+		int beforeIndex = (head + after - 1) & MASK;
+		int afterIndex = (head + after) & MASK;
+		float fraction = StaticTools.singleDimentionLerpFraction(times[beforeIndex], times[afterIndex], millis);
+		result.x = StaticTools.singleDimensionLerp(xs[beforeIndex], xs[afterIndex], fraction);
+		result.y = StaticTools.singleDimensionLerp(ys[beforeIndex], ys[afterIndex], fraction);
+		return true;
 	}
 	
+	/**
+	 * Drops entries older than ENTRY_LIFETIME. Only looks at the oldest entries.
+	 */
 	public synchronized void removeOldEntitySnapshotsFromLog () {
-		ArrayList<EntityLogEntry> entriesToRemove = new ArrayList<EntityLogEntry>();
-		for (EntityLogEntry entry : logEntries) {
-			long deltatime = System.currentTimeMillis() - entry.creationTime;
-			if (deltatime > ENTRY_LIFETIME)
-				entriesToRemove.add(entry);
+		long currentTime = System.currentTimeMillis();
+		while (count > 0 && currentTime - times[head] > ENTRY_LIFETIME) {
+			head = (head + 1) & MASK;
+			count--;
 		}
-		logEntries.removeAll(entriesToRemove);
 	}
 	
 	public synchronized void clearAll () {
-		logEntries.clear();
+		head = 0;
+		count = 0;
 	}
 	
 }
@@ -1,56 +1,148 @@
 package net.hollowbit.archipeloserver.entity;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
 
+import com.badlogic.gdx.utils.IntIntMap;
+
 import net.hollowbit.archipeloserver.entity.living.Player;
 import net.hollowbit.archipeloshared.EntityData;
 
+/**
+ * Entities of a map, kept in a dense array and found by their int handle.
+ * Removing swaps the last entity into the removed slot, so the order of entities changes as they are removed.
+ * For looping, getEntities() and getPlayers() return copy-on-write arrays which are only rebuilt after entities were added or removed.
+ * They are never modified once returned, so they can be looped through while entities are added or removed.
+ * @author vedi0boy
+ *
+ */
 public class EntityManager {
 	
-	private HashMap<String, Entity> entities;
-	private ArrayList<Entity> entitiesList;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final Entity[] NO_ENTITIES = new Entity[0];
+	private static final Player[] NO_PLAYERS = new Player[0];
+	
+	private Entity[] entities;
+	private int size = 0;
+	private IntIntMap indicesByHandle;//Index in entities array of each entity handle
+	private HashMap<String, Entity> entitiesByName;//Only for looking up entities by name, like from commands
 	private int numPlayers = 0;
+	private Entity[] entitiesView = NO_ENTITIES;
+	private Player[] playersView = NO_PLAYERS;
+	private boolean viewsOutdated = false;
 	
 	public EntityManager () {
-		entities = new HashMap<String, Entity>();
-		entitiesList = new ArrayList<Entity>();
+		entities = new Entity[INITIAL_CAPACITY];
+		indicesByHandle = new IntIntMap(INITIAL_CAPACITY);
+		entitiesByName = new HashMap<String, Entity>();
 	}
 	
+	/**
+	 * Adds an entity. It must already have a handle, see Entity.assignHandle().
+	 * @param entity
+	 */
 	public synchronized void addEntity (Entity entity) {
+		if (indicesByHandle.containsKey(entity.getHandle()))
+			return;
+		
+		if (size == entities.length) {
+			Entity[] newEntities = new Entity[entities.length * 2];
+			System.arraycopy(entities, 0, newEntities, 0, size);
+			entities = newEntities;
+		}
+		
 		if (entity.isPlayer())
 			numPlayers++;
-		entities.put(entity.getName(), entity);
-		entitiesList.add(entity);
+		entities[size] = entity;
+		indicesByHandle.put(entity.getHandle(), size);
+		size++;
+		entitiesByName.put(entity.getName(), entity);
+		membershipChanged();
 	}
 	
 	public synchronized void removeEntity (Entity entity) {
+		int index = indicesByHandle.remove(entity.getHandle(), -1);
+		if (index == -1)
+			return;
+		
+		//Move last entity into the removed one's slot
+		size--;
+		Entity last = entities[size];
+		entities[index] = last;
+		entities[size] = null;
+		if (last != entity)
+			indicesByHandle.put(last.getHandle(), index);
+		
 		if (entity.isPlayer())
 			numPlayers--;
-		entities.remove(entity);
-		entitiesList.remove(entity);
+		if (entitiesByName.get(entity.getName()) == entity)
+			entitiesByName.remove(entity.getName());
+		membershipChanged();
+	}
+	
+	private void membershipChanged () {
+		viewsOutdated = true;
+	}
+	
+	private void updateViews () {
+		if (!viewsOutdated)
+			return;
+		
+		entitiesView = size == 0 ? NO_ENTITIES : Arrays.copyOf(entities, size);
+		playersView = numPlayers <= 0 ? NO_PLAYERS : new Player[numPlayers];
+		int playerIndex = 0;
+		for (int i = 0; i < size; i++) {
+			if (entities[i].isPlayer())
+				playersView[playerIndex++] = (Player) entities[i];
+		}
+		viewsOutdated = false;
 	}
 	
-	public synchronized ArrayList<Entity> duplicateEntityList () {
-		ArrayList<Entity> entityList = new ArrayList<Entity>(entitiesList);
-		return entityList;
+	/**
+	 * All entities on the map. The array is shared and must not be modified.
+	 * @return
+	 */
+	public synchronized Entity[] getEntities () {
+		updateViews();
+		return entitiesView;
+	}
+	
+	/**
+	 * All players on the map. The array is shared and must not be modified.
+	 * @return
+	 */
+	public synchronized Player[] getPlayers () {
+		updateViews();
+		return playersView;
+	}
+	
+	/**
+	 * Returns the entity with this handle, or null if it isn't on this map.
+	 * @param handle
+	 * @return
+	 */
+	public synchronized Entity getEntity (int handle) {
+		int index = indicesByHandle.get(handle, -1);
+		if (index == -1)
+			return null;
+		return entities[index];
+	}
+	
+	public synchronized boolean contains (Entity entity) {
+		int index = indicesByHandle.get(entity.getHandle(), -1);
+		return index != -1 && entities[index] == entity;
 	}
 	
 	public synchronized Entity getEntity (String name) {
-		return entities.get(name);
+		return entitiesByName.get(name);
 	}
 	
-	public boolean exists (String name) {
-		if (!entities.containsKey(name))
-			return false;
-		else {
-			return true;
-		}
+	public synchronized boolean exists (String name) {
+		return entitiesByName.containsKey(name);
 	}
 	
-	public Player getPlayer (String name) {
-		Entity entity = entities.get(name);
+	public synchronized Player getPlayer (String name) {
+		Entity entity = entitiesByName.get(name);
 		if (entity == null)
 			return null;
 		
@@ -61,27 +153,14 @@ public class EntityManager {
 		}
 	}
 	
-	/* Collection<Entity> getEntities () {
-		return entitiesList;
-	}*/
-	
-	public Collection<Player> getPlayers () {
-		ArrayList<Player> players = new ArrayList<Player>();
-		for (Entity entity : entitiesList) {
-			if(entity.isPlayer())
-				players.add((Player) entity);
-		}
-		return players;
-	}
-	
 	public boolean noPlayersInList() {
 		return numPlayers <= 0;
 	}
 	
-	public EntityData getDataToSave() {
+	public synchronized EntityData getDataToSave() {
 		EntityData data = new EntityData();
-		for (Entity entity : entitiesList)
-			data.entities.add(entity.getSaveSnapshot());
+		for (int i = 0; i < size; i++)
+			data.entities.add(entities[i].getSaveSnapshot());
 		return data;
 	}
 	
@@ -4,10 +4,12 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 
 import com.badlogic.gdx.utils.Json;
+import com.badlogic.gdx.utils.ObjectIntMap;
 import com.badlogic.gdx.utils.reflect.ClassReflection;
 import com.badlogic.gdx.utils.reflect.ReflectionException;
 
@@ -35,9 +37,12 @@ public enum EntityType {
 	SLIME("slime", Slime.class),
 	SPAWNER("spawner", Spawner.class);
 	
+	public static final int NO_ANIMATION = -1;
+	
 	private String id;
 	private Class entityClass;
-	private HashMap<String, EntityAnimationData> animations;
+	private ObjectIntMap<String> animationIndices;
+	private EntityAnimationData[] animations;//Indexed by animation index, in the order of the type's file
 	private int numberOfStyles;
 	private boolean hittable;
 	
@@ -56,6 +61,7 @@ public enum EntityType {
 	
 	//Rects
 	private CollisionRect collRects[];
+	private float collBoundsX, collBoundsY, collBoundsWidth, collBoundsHeight;//Box around all collision rects, relative to the entity's position
 	
 	//Sounds
 	private HashSet<String> sounds;
@@ -100,17 +106,19 @@ public enum EntityType {
 		for (int i = 0; i < collRects.length; i++) {
 			this.collRects[i] = new CollisionRect(data.collisionRects[i]);
 		}
+		calculateCollisionBounds();
 		
-		animations = new HashMap<String, EntityAnimationData>();
-		boolean first = true;
+		//Give every animation an index so animations can be compared without comparing strings
+		ArrayList<EntityAnimationData> animationList = new ArrayList<EntityAnimationData>();
+		animationIndices = new ObjectIntMap<String>();
 		for (EntityAnimationData animationData : data.animations) {
-			animations.put(animationData.id, animationData);
-			
-			if (first) {//Set the first animation as the default
-				defaultAnimation = animationData.id;
-				first = false;
-			}
+			animationIndices.put(animationData.id, animationList.size());
+			animationList.add(animationData);
 		}
+		animations = animationList.toArray(new EntityAnimationData[animationList.size()]);
+		
+		if (animations.length > 0)//Set the first animation as the default
+			defaultAnimation = animations[0].id;
 		
 		sounds = new HashSet<String>();
 		if (data.sounds != null) {
@@ -146,18 +154,80 @@ public enum EntityType {
 		return newViewRect.move(x, y);
 	}
 	
+	private void calculateCollisionBounds () {
+		CollisionRect[] rects = getCollisionRects(0, 0);
+		if (rects.length == 0)
+			return;
+		
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for (CollisionRect rect : rects) {
+			minX = Math.min(minX, rect.xWithOffset());
+			minY = Math.min(minY, rect.yWithOffset());
+			maxX = Math.max(maxX, rect.xWithOffset() + rect.width);
+			maxY = Math.max(maxY, rect.yWithOffset() + rect.height);
+		}
+		collBoundsX = minX;
+		collBoundsY = minY;
+		collBoundsWidth = maxX - minX;
+		collBoundsHeight = maxY - minY;
+	}
+	
+	/**
+	 * X of the box around all collision rects, relative to the entity's position.
+	 * @return
+	 */
+	public float getCollisionBoundsX () {
+		return collBoundsX;
+	}
+	
+	/**
+	 * Y of the box around all collision rects, relative to the entity's position.
+	 * @return
+	 */
+	public float getCollisionBoundsY () {
+		return collBoundsY;
+	}
+	
+	public float getCollisionBoundsWidth () {
+		return collBoundsWidth;
+	}
+	
+	public float getCollisionBoundsHeight () {
+		return collBoundsHeight;
+	}
+	
 	/**
-	 * Returns a list of all collision rects for this entity at the specified location.
+	 * Returns a new list of all collision rects for this entity at the specified location.
+	 * Allocates, so prefer moving a set made with createCollisionRects when this is called often.
 	 * @param x
 	 * @param y
 	 * @return
 	 */
 	public CollisionRect[] getCollisionRects (float x, float y) {
+		return moveCollisionRects(createCollisionRects(), x, y);
+	}
+	
+	/**
+	 * Returns a new copy of the collision rects of this type that can be reused with moveCollisionRects.
+	 * @return
+	 */
+	public CollisionRect[] createCollisionRects () {
 		CollisionRect[] rects = new CollisionRect[collRects.length];
-		for (int i = 0; i < rects.length; i++) {
-			CollisionRect rect = new CollisionRect(collRects[i]);
-			rects[i] = rect.move(x, y);
-		}
+		for (int i = 0; i < rects.length; i++)
+			rects[i] = new CollisionRect(collRects[i]);
+		return rects;
+	}
+	
+	/**
+	 * Moves a set of rects made with createCollisionRects to the specified location. The offsets and sizes come from the type, so only the position changes.
+	 * @param rects
+	 * @param x
+	 * @param y
+	 * @return The same rects
+	 */
+	public CollisionRect[] moveCollisionRects (CollisionRect[] rects, float x, float y) {
+		for (int i = 0; i < rects.length; i++)
+			rects[i].move(x, y);
 		return rects;
 	}
 	
@@ -202,11 +272,26 @@ public enum EntityType {
 	}
 	
 	public boolean hasAnimation (String animationId) {
-		return animations.containsKey(animationId);
+		return animationIndices.containsKey(animationId);
 	}
 	
 	public EntityAnimationData getAnimationDataById (String animationId) {
-		return animations.get(animationId);
+		int index = getAnimationIndex(animationId);
+		return index == NO_ANIMATION ? null : animations[index];
+	}
+	
+	/**
+	 * Returns the index of an animation of this type, or NO_ANIMATION if it doesn't have it.
+	 * Indices never change while the server runs, so they can be looked up once and kept.
+	 * @param animationId
+	 * @return
+	 */
+	public int getAnimationIndex (String animationId) {
+		return animationIndices.get(animationId, NO_ANIMATION);
+	}
+	
+	public EntityAnimationData getAnimationData (int animationIndex) {
+		return animations[animationIndex];
 	}
 	
 	public boolean hasSound (String sound) {
@@ -1,10 +1,8 @@
 package net.hollowbit.archipeloserver.entity;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
-
-import com.badlogic.gdx.math.Vector2;
 
+import net.hollowbit.archipeloserver.ArchipeloServer;
 import net.hollowbit.archipeloserver.entity.living.movementanimation.MovementAnimation;
 import net.hollowbit.archipeloserver.entity.living.movementanimation.MovementAnimationManager;
 import net.hollowbit.archipeloserver.tools.entity.EntityStepOnData;
@@ -21,7 +19,10 @@ import net.hollowbit.archipeloshared.EntitySnapshot;
 
 public abstract class LivingEntity extends Entity implements EventHandler {
 	
-	private LinkedList<EntityStepOnData> entitiesSteppedOn;
+	private ArrayList<EntityStepOnData> entitiesSteppedOn;
+	private ArrayList<EntityStepOnData> stepListCopy = new ArrayList<EntityStepOnData>();//Reused by tick20 for STEP_CONTINUAL interactions
+	private ArrayList<EntityStepOnData> newSteps = new ArrayList<EntityStepOnData>();//Reused by step on updates
+	private ArrayList<EntityStepOnData> oldSteps = new ArrayList<EntityStepOnData>();//Reused by step on updates
 	public static final float DIAGONAL_FACTOR = (float) Math.sqrt(2);
 	private float lastSpeed;
 	protected MovementAnimationManager movementAnimationManager;
@@ -29,27 +30,30 @@ public abstract class LivingEntity extends Entity implements EventHandler {
 	@Override
 	public void create(String name, int style, Location location, EntityType entityType) {
 		super.create(name, style, location, entityType);
-		entitiesSteppedOn = new LinkedList<EntityStepOnData>();
+		entitiesSteppedOn = new ArrayList<EntityStepOnData>();
 		lastSpeed = entityType.getSpeed();
 		this.movementAnimationManager = new MovementAnimationManager();
-		this.addToEventManager(EventType.EntityTeleport, EventType.EntityMove, EventType.EntityDeath);
+		this.addToEventManager(EventType.EntityTeleport, EventType.EntityDeath);
 	}
 	
 	@Override
 	public void create(EntitySnapshot fullSnapshot, Map map, EntityType entityType) {
 		super.create(fullSnapshot, map, entityType);
-		entitiesSteppedOn = new LinkedList<EntityStepOnData>();
+		entitiesSteppedOn = new ArrayList<EntityStepOnData>();
 		lastSpeed = entityType.getSpeed();
 		this.movementAnimationManager = new MovementAnimationManager();
-		this.addToEventManager(EventType.EntityTeleport, EventType.EntityMove);
+		this.addToEventManager(EventType.EntityTeleport);
 	}
 	
 	@Override
 	public void tick20(float deltaTime) {
 		super.tick20(deltaTime);
-		for (EntityStepOnData entityStepOnData : duplicateEntitiesStepList()) {
+		copyEntitiesStepList(stepListCopy);
+		for (int i = 0; i < stepListCopy.size(); i++) {
+			EntityStepOnData entityStepOnData = stepListCopy.get(i);
 			this.interactWith(entityStepOnData.entity, entityStepOnData.theirCollisionRectName, entityStepOnData.yourCollisionRectName, EntityInteractionType.STEP_CONTINUAL);
 		}
+		stepListCopy.clear();
 		
 		//If the speed changes, update it on the clients
 		if (this.getSpeed() != lastSpeed) {
@@ -78,18 +82,22 @@ public abstract class LivingEntity extends Entity implements EventHandler {
 		entitiesSteppedOn.add(entityStepOnData);
 	}
 	
-	private synchronized void removeAllEntityFromStepList (LinkedList<EntityStepOnData> entityStepOnDatas) {
-		entitiesSteppedOn.removeAll(entityStepOnDatas);
-	}
-	
 	private synchronized void removeEntityFromStepList (EntityStepOnData entityStepOnData) {
 		entitiesSteppedOn.remove(entityStepOnData);
 	}
 	
-	private synchronized ArrayList<EntityStepOnData> duplicateEntitiesStepList () {
-		ArrayList<EntityStepOnData> entitiesStepList = new ArrayList<EntityStepOnData>();
-		entitiesStepList.addAll(entitiesSteppedOn);
-		return entitiesStepList;
+	private synchronized void clearEntitiesSteppedOn () {
+		entitiesSteppedOn.clear();
+	}
+	
+	/**
+	 * Copies the step list into a reused list, so interactions can be done without holding on to it.
+	 * @param copy
+	 */
+	private synchronized void copyEntitiesStepList (ArrayList<EntityStepOnData> copy) {
+		copy.clear();
+		for (int i = 0; i < entitiesSteppedOn.size(); i++)
+			copy.add(entitiesSteppedOn.get(i));
 	}
 	
 	@Override
@@ -113,7 +121,7 @@ public abstract class LivingEntity extends Entity implements EventHandler {
 	 * @return
 	 */
 	public boolean move(float deltaTime, boolean checkCollisions) {
-		return this.move(location.direction, deltaTime, checkCollisions);
+		return this.move(location.getDirection(), deltaTime, checkCollisions);
 	}
 	
 	/**
@@ -139,29 +147,30 @@ public abstract class LivingEntity extends Entity implements EventHandler {
 	@SuppressWarnings("incomplete-switch")
 	public boolean move (Direction direction, float deltaTime, boolean checkCollisions, float speed) {
 		//Calculate new position
-		Vector2 newPos = new Vector2(location.pos);
-		Vector2 newPosVertical = new Vector2(location.pos);
+		float oldX = location.getX(), oldY = location.getY();
+		float newX = oldX, newY = oldY;
+		float newYVertical = oldY;
 		switch (direction) {
 		case UP:
-			newPosVertical.add(0, (float) (deltaTime * speed));
+			newYVertical += (float) (deltaTime * speed);
 			break;
 		case UP_LEFT:
 		case UP_RIGHT:
-			newPosVertical.add(0, (float) (deltaTime * speed / LivingEntity.DIAGONAL_FACTOR));
+			newYVertical += (float) (deltaTime * speed / LivingEntity.DIAGONAL_FACTOR);
 			break;
 			
 		case DOWN:
-			newPosVertical.add(0, (float) (-deltaTime * speed));
+			newYVertical += (float) (-deltaTime * speed);
 			break;
 		case DOWN_LEFT:
 		case DOWN_RIGHT:
-			newPosVertical.add(0, (float) (-deltaTime * speed / LivingEntity.DIAGONAL_FACTOR));
+			newYVertical += (float) (-deltaTime * speed / LivingEntity.DIAGONAL_FACTOR);
 			break;
 		}
 		
 		boolean collidesWithMap = false;
 		if (checkCollisions) {
-			for (CollisionRect rect : getCollisionRects(newPosVertical)) {//Checks to make sure no collision rect is intersecting with map
+			for (CollisionRect rect : getCollisionRects(newX, newYVertical)) {//Checks to make sure no collision rect is intersecting with map
 				if (location.getMap().collidesWithMap(rect, this)) {
 					collidesWithMap = true;
 					break;
@@ -170,30 +179,30 @@ public abstract class LivingEntity extends Entity implements EventHandler {
 		}
 		
 		if(!collidesWithMap || doesCurrentPositionCollideWithMap()) {
-			newPos.set(newPosVertical);
+			newY = newYVertical;
 		}
 		
-		Vector2 newPosHorizontal = new Vector2(newPos);
+		float newXHorizontal = newX;
 		switch (direction) {
 		case LEFT:
-			newPosHorizontal.add((float) (-deltaTime * speed), 0);
+			newXHorizontal += (float) (-deltaTime * speed);
 			break;
 		case UP_LEFT:
 		case DOWN_LEFT:
-			newPosHorizontal.add((float) (-deltaTime * speed / LivingEntity.DIAGONAL_FACTOR), 0);
+			newXHorizontal += (float) (-deltaTime * speed / LivingEntity.DIAGONAL_FACTOR);
 			break;
 		case RIGHT:
-			newPosHorizontal.add((float) (deltaTime * speed), 0);
+			newXHorizontal += (float) (deltaTime * speed);
 			break;
 		case UP_RIGHT:
 		case DOWN_RIGHT:
-			newPosHorizontal.add((float) (deltaTime * speed / LivingEntity.DIAGONAL_FACTOR), 0);
+			newXHorizontal += (float) (deltaTime * speed / LivingEntity.DIAGONAL_FACTOR);
 			break;
 		}
 		
 		collidesWithMap = false;
 		if (checkCollisions) {
-			for (CollisionRect rect : getCollisionRects(newPosHorizontal)) {//Checks to make sure no collision rect is intersecting with map
+			for (CollisionRect rect : getCollisionRects(newXHorizontal, newY)) {//Checks to make sure no collision rect is intersecting with map
 				if (location.getMap().collidesWithMap(rect, this)) {
 					collidesWithMap = true;
 					break;
@@ -202,83 +211,111 @@ public abstract class LivingEntity extends Entity implements EventHandler {
 		}
 		
 		if (!collidesWithMap || doesCurrentPositionCollideWithMap()) {
-			newPos.set(newPosHorizontal);
+			newX = newXHorizontal;
 		}
 		
-		//Create event and check
-		EntityMoveEvent event = new EntityMoveEvent(this, location.pos, newPos);//trigger move event
-		event.trigger();
-		if (event.wasCancelled()) {
-			event.close();
-			return false;
-		} else {
-			newPos = event.getNewPos();//Set new pos with new one from event
-			location.set(newPos);
+		//Create event and check, unless nobody is listening
+		EntityMoveEvent event = null;
+		if (ArchipeloServer.getServer().getEventManager().hasHandlers(EventType.EntityMove)) {
+			event = EntityMoveEvent.obtain(this, oldX, oldY, newX, newY);//trigger move event
+			event.trigger();
+			if (event.wasCancelled()) {
+				event.close();
+				return false;
+			}
+			
+			//Set new pos with new one from event
+			newX = event.getNewPos().x;
+			newY = event.getNewPos().y;
+		}
+		
+		location.getMap().markChunkDirty(this);//Both the chunk left and the chunk entered need to be saved
+		location.set(newX, newY);
+		location.getMap().updateEntityPosition(this);
+		if (deltaTime > 0)//Event handlers can move it further than speed allows, so use how far it actually went
+			location.getMap().getHitQuery().updateMaxSpeed((float) Math.hypot(newX - oldX, newY - oldY) / deltaTime);
+		location.getMap().queueStepOnCheck(this);
+		location.getMap().markChunkDirty(this);
+		if (event != null)
 			event.close();
-			return true;
+		return true;
+	}
+	
+	/**
+	 * Updates which entities this entity is stepping on and does STEP_ON and STEP_OFF interactions for anything that changed.
+	 * Called by the map once per tick if this entity moved.
+	 * @param nearbyEntities Entities close enough that they may be touching this one
+	 */
+	public void updateEntitiesSteppedOn (ArrayList<Entity> nearbyEntities) {
+		diffEntitiesStepList(nearbyEntities, newSteps, oldSteps);
+		
+		//Interactions are done after the step list is updated, since they may change it
+		for (int i = 0; i < newSteps.size(); i++) {
+			EntityStepOnData data = newSteps.get(i);
+			this.interactWith(data.entity, data.theirCollisionRectName, data.yourCollisionRectName, EntityInteractionType.STEP_ON);
 		}
+		for (int i = 0; i < oldSteps.size(); i++) {
+			EntityStepOnData data = oldSteps.get(i);
+			this.interactWith(data.entity, data.theirCollisionRectName, data.yourCollisionRectName, EntityInteractionType.STEP_OFF);
+		}
+		newSteps.clear();
+		oldSteps.clear();
 	}
 	
-	@Override
-	public boolean onEntityMove(EntityMoveEvent event) {
-		if (event.getEntity() == this && !event.wasCancelled()) {
-			//Update step on list of entity
-			ArrayList<Entity> entitiesOnMap = (ArrayList<Entity>) location.getMap().getEntityManager().duplicateEntityList();
-			for (Entity entity : entitiesOnMap) {
-				if (entity == this)
-					continue;
-				
-				//Check which rects are being stepped on currently
-				ArrayList<EntityStepOnData> rectsSteppedOn = new ArrayList<EntityStepOnData>();
-				for (CollisionRect entityRect : entity.getCollisionRects()) {
-					for (CollisionRect thisRect : this.getCollisionRects(event.getNewPos())) {
-						if (thisRect.collidesWith(entityRect)) {
-							rectsSteppedOn.add(new EntityStepOnData(entityRect.name, thisRect.name, entity));
-						}
-					}
-				}
-				
-				
-				//See which step on data is new to initiate a STEP_ON event
-				for (EntityStepOnData data : rectsSteppedOn) {
-					boolean contains = false;
-					for (EntityStepOnData data2 : entitiesSteppedOn) {
-						if (data.entity == data2.entity && data.theirCollisionRectName.equals(data2.theirCollisionRectName)) {
-							contains = true;
-							break;
-						}
-					}
-					
-					if (!contains) {
-						addEntityToStepList(data);
-						this.interactWith(data.entity, data.theirCollisionRectName, data.yourCollisionRectName, EntityInteractionType.STEP_ON);
-					}
-				}
-				
-				//See which step on data is not there to initiate a STEP_OFF event
-				LinkedList<EntityStepOnData> entitiesStepOnToRemove = new LinkedList<EntityStepOnData>();
-				for (EntityStepOnData data : entitiesSteppedOn) {
-					if (data.entity != entity)
+	/**
+	 * Adds the rects stepped on now to the step list and removes the ones that aren't anymore, in a single pass over the list.
+	 * Step on data is only created for rects that weren't stepped on before.
+	 * @param nearbyEntities
+	 * @param newSteps Filled with the data that was added
+	 * @param oldSteps Filled with the data that was removed and needs a STEP_OFF. Data of entities that left the map is dropped without one.
+	 */
+	private synchronized void diffEntitiesStepList (ArrayList<Entity> nearbyEntities, ArrayList<EntityStepOnData> newSteps, ArrayList<EntityStepOnData> oldSteps) {
+		//Mark the rects that are still stepped on and add the new ones
+		CollisionRect[] rects = this.getCollisionRects();
+		for (int i = 0; i < nearbyEntities.size(); i++) {
+			Entity entity = nearbyEntities.get(i);
+			if (entity == this)
+				continue;
+			
+			for (CollisionRect entityRect : entity.getCollisionRects()) {
+				for (CollisionRect thisRect : rects) {
+					if (!thisRect.collidesWith(entityRect))
 						continue;
 					
-					boolean contains = false;
-					for (EntityStepOnData data2 : rectsSteppedOn) {
-						if (data.entity == data2.entity && data.theirCollisionRectName.equals(data2.theirCollisionRectName)) {
-							contains = true;
-							break;
-						}
-					}
-					
-					if (!contains || entity.getMap() != this.getMap()) {//If there is an entry for the same entity that is not in rectsSteppedOn, remove it and do a step off event
-						entitiesStepOnToRemove.add(data);
-						this.interactWith(data.entity, data.theirCollisionRectName, data.yourCollisionRectName, EntityInteractionType.STEP_OFF);
+					EntityStepOnData data = findStepOnData(entity, entityRect.name);
+					if (data == null) {
+						data = new EntityStepOnData(entityRect.name, thisRect.name, entity);
+						entitiesSteppedOn.add(data);
+						newSteps.add(data);
 					}
+					data.stillSteppedOn = true;
 				}
-				removeAllEntityFromStepList(entitiesStepOnToRemove);
 			}
-			return true;
 		}
-		return EventHandler.super.onEntityMove(event);
+		
+		//Keep the marked data, in order, and drop the rest
+		int kept = 0;
+		for (int i = 0; i < entitiesSteppedOn.size(); i++) {
+			EntityStepOnData data = entitiesSteppedOn.get(i);
+			boolean entityGone = data.entity.getMap() != this.getMap() || !getMap().isEntityOnMap(data.entity);
+			boolean stillSteppedOn = data.stillSteppedOn;
+			data.stillSteppedOn = false;
+			if (stillSteppedOn && !entityGone)
+				entitiesSteppedOn.set(kept++, data);
+			else if (!entityGone)
+				oldSteps.add(data);
+		}
+		for (int i = entitiesSteppedOn.size() - 1; i >= kept; i--)
+			entitiesSteppedOn.remove(i);
+	}
+	
+	private EntityStepOnData findStepOnData (Entity entity, String theirCollisionRectName) {
+		for (int i = 0; i < entitiesSteppedOn.size(); i++) {
+			EntityStepOnData data = entitiesSteppedOn.get(i);
+			if (data.entity == entity && data.theirCollisionRectName.equals(theirCollisionRectName))
+				return data;
+		}
+		return null;
 	}
 	
 	@Override
@@ -317,7 +354,7 @@ public abstract class LivingEntity extends Entity implements EventHandler {
 		if (event.getEntity() == this) {
 			//If changing map, clear all entities from step on list
 			if (!event.wasCancelled() && event.isNewMap())
-				entitiesSteppedOn.clear();
+				clearEntitiesSteppedOn();
 			return true;
 		}
 		return EventHandler.super.onEntityTeleport(event);
@@ -326,8 +363,17 @@ public abstract class LivingEntity extends Entity implements EventHandler {
 	@Override
 	public boolean onEntityDeath(EntityDeathEvent event) {
 		if (event.getEntity() == this) {
-			if (!event.wasCancelled())
-				movementAnimationManager.clearAll();
+			if (!event.wasCancelled()) {
+				//Deaths can be triggered from other maps, so clear the animations on this entity's own thread
+				postToMap(new Runnable() {
+					
+					@Override
+					public void run() {
+						movementAnimationManager.clearAll();
+					}
+					
+				});
+			}
 			return true;
 		}
 		return EventHandler.super.onEntityDeath(event);
@@ -1,12 +1,14 @@
 package net.hollowbit.archipeloserver.entity.components;
 
+import net.hollowbit.archipeloserver.entity.Entity;
 import net.hollowbit.archipeloserver.entity.EntityComponent;
 import net.hollowbit.archipeloserver.entity.LivingEntity;
 import net.hollowbit.archipeloserver.entity.living.Player;
 import net.hollowbit.archipeloserver.tools.event.EventHandler;
 import net.hollowbit.archipeloserver.tools.event.EventType;
 import net.hollowbit.archipeloserver.tools.event.events.editable.EntityDeathEvent;
-import net.hollowbit.archipeloserver.tools.event.events.editable.EntityMoveEvent;
+import net.hollowbit.archipeloserver.world.map.ProximityTracker;
+import net.hollowbit.archipeloserver.world.map.ProximityTracker.Subscription;
 import net.hollowbit.archipeloshared.Direction;
 
 public class MonsterFollowComponent extends EntityComponent implements EventHandler {
@@ -19,6 +21,7 @@ public class MonsterFollowComponent extends EntityComponent implements EventHand
 	protected int deactivationZoneDist;
 	protected Player target;
 	protected boolean moving;
+	protected Subscription subscription;
 	
 	public MonsterFollowComponent(LivingEntity entity, int activationZoneDistance, int deactivationZoneDistance) {
 		super(entity);
@@ -27,18 +30,23 @@ public class MonsterFollowComponent extends EntityComponent implements EventHand
 		this.deactivationZoneDist = deactivationZoneDistance;
 		this.target = null;
 		this.moving = false;
-		this.addToEventManager(EventType.EntityDeath, EventType.EntityMove);
-		this.scanForTarget();
+		this.addToEventManager(EventType.EntityDeath);
 	}
 	
 	@Override
 	public void remove() {
 		this.removeFromEventManager();
+		if (subscription != null && subscription.isActive())
+			entity.getMap().getProximityTracker().unsubscribe(subscription);
 		super.remove();
 	}
 	
 	@Override
 	public void tick60(float deltaTime) {
+		//Subscribe once the entity is ticking on its map, so entities that never get added aren't left subscribed
+		if (subscription == null || !subscription.isActive())
+			subscribe();
+		
 		if (target != null) {
 			float dX = (entity.getFootX() - target.getFootX());
 			float dY = (entity.getFootY() - target.getFootY());
@@ -46,26 +54,11 @@ public class MonsterFollowComponent extends EntityComponent implements EventHand
 			if (dX * dX + dY * dY <= target.getCollisionRects()[0].width) {//Within attack distance, then attack the target
 				moving = false;
 			} else {
-				double angle = Math.toDegrees(Math.atan2(dY, dX));
-				
-				//Calculate direction to move entity based on angle to player
-				if (angle < 22.5 && angle > -22.5) {
-					livingEntity.setDirection(Direction.LEFT);
-				} else if (angle >= 22.5 && angle < 67.5) {
-					livingEntity.setDirection(Direction.DOWN_LEFT);
-				} else if (angle >= 67.5 && angle < 112.5) {
-					livingEntity.setDirection(Direction.DOWN);
-				} else if (angle >= 112.5 && angle < 157.5) {
-					livingEntity.setDirection(Direction.DOWN_RIGHT);
-				} else if (angle <= -22.5 && angle > -67.5) {
-					livingEntity.setDirection(Direction.UP_LEFT);
-				} else if (angle <= -67.5 && angle > -112.5) {
-					livingEntity.setDirection(Direction.UP);
-				} else if (angle <= -112.5 && angle > -157.5) {
-					livingEntity.setDirection(Direction.UP_RIGHT);
-				} else {
-					livingEntity.setDirection(Direction.RIGHT);
-				}
+				//Follow the path around tiles if there is one, otherwise go straight at the target
+				Direction direction = entity.getMap().getPathfinder().getDirectionTowards(entity, target);
+				if (direction == null)
+					direction = getDirectionFromAngle(Math.toDegrees(Math.atan2(dY, dX)));
+				livingEntity.setDirection(direction);
 				livingEntity.move(deltaTime, true);//Move the entity in that direction
 				moving = true;
 			}
@@ -75,6 +68,31 @@ public class MonsterFollowComponent extends EntityComponent implements EventHand
 		super.tick60(deltaTime);
 	}
 	
+	/**
+	 * Calculate direction to move entity based on angle to player
+	 * @param angle In degrees, from the target to this entity
+	 * @return
+	 */
+	private Direction getDirectionFromAngle (double angle) {
+		if (angle < 22.5 && angle > -22.5) {
+			return Direction.LEFT;
+		} else if (angle >= 22.5 && angle < 67.5) {
+			return Direction.DOWN_LEFT;
+		} else if (angle >= 67.5 && angle < 112.5) {
+			return Direction.DOWN;
+		} else if (angle >= 112.5 && angle < 157.5) {
+			return Direction.DOWN_RIGHT;
+		} else if (angle <= -22.5 && angle > -67.5) {
+			return Direction.UP_LEFT;
+		} else if (angle <= -67.5 && angle > -112.5) {
+			return Direction.UP;
+		} else if (angle <= -112.5 && angle > -157.5) {
+			return Direction.UP_RIGHT;
+		} else {
+			return Direction.RIGHT;
+		}
+	}
+	
 	/**
 	 * Returns whether this entity is currently moving.
 	 * @return
@@ -83,28 +101,27 @@ public class MonsterFollowComponent extends EntityComponent implements EventHand
 		return moving;
 	}
 	
-	@Override
-	public boolean onEntityMove(EntityMoveEvent event) {
-		if (event.getEntity() == target) {
-			//Check if target left deactivation distance
-			float dX = (entity.getFootX() - event.getEntity().getFootX());
-			float dY = (entity.getFootY() - event.getEntity().getFootY());
-			if (dX * dX + dY * dY > this.deactivationZoneDist * this.deactivationZoneDist)
-				this.target = null;//If so, remove target
-			return true;
-		} else {
-			if (target == null) {//If we don't have a target and entity is a player on the same map
-				if (event.getEntity().isPlayer() && event.getEntity().getMap() == livingEntity.getMap()) {
-					//Check if within activation distance
-					float dX = (entity.getFootX() - event.getEntity().getFootX());
-					float dY = (entity.getFootY() - event.getEntity().getFootY());
-					if (dX * dX + dY * dY < this.activationZoneDist * this.activationZoneDist)//If within, set as target
-						this.target = (Player) event.getEntity();
-					return true;
+	/**
+	 * Starts watching for players around this entity. Players already close enough become a target right away.
+	 */
+	protected void subscribe() {
+		subscription = entity.getMap().getProximityTracker().subscribe(entity, activationZoneDist, deactivationZoneDist, true, new ProximityTracker.Listener() {
+			
+			@Override
+			public void onEntityEnter(Entity entity) {
+				if (target == null)
+					target = (Player) entity;
+			}
+			
+			@Override
+			public void onEntityLeave(Entity entity) {
+				if (entity == target) {//Target left deactivation distance, so look for another one
+					target = null;
+					scanForTarget();
 				}
 			}
-		}
-		return false;
+		
+		});
 	}
 	
 	public Player getTarget() {
@@ -146,14 +163,19 @@ public class MonsterFollowComponent extends EntityComponent implements EventHand
 	}
 	
 	/**
-	 * Scans for a new player to follow.
+	 * Scans the players around this entity for a new one to follow.
 	 */
 	protected void scanForTarget() {
-		for (Player player : entity.getMap().getPlayers()) {
-			float dX = (entity.getFootX() - player.getFootX());
-			float dY = (entity.getFootY() - player.getFootY());
-			if (dX * dX + dY * dY < this.activationZoneDist * this.activationZoneDist)//If within, set as target
-				this.target = player;
+		if (subscription == null)
+			return;
+		
+		for (Entity inside : subscription.getEntitiesInside()) {
+			float dX = (entity.getFootX() - inside.getFootX());
+			float dY = (entity.getFootY() - inside.getFootY());
+			if (dX * dX + dY * dY < this.activationZoneDist * this.activationZoneDist) {//If within, set as target
+				this.target = (Player) inside;
+				return;
+			}
 		}
 	}
 
@@ -61,7 +61,17 @@ public class Computer extends LifelessEntity implements EventHandler {
 	@Override
 	public boolean onPlayerLeave(PlayerLeaveEvent event) {
 		if (event.getPlayer() == user) {
-			turnOff();
+			//Turn off on this computer's own map thread, the player may be leaving from anywhere
+			final Player leavingUser = event.getPlayer();
+			postToMap(new Runnable() {
+				
+				@Override
+				public void run() {
+					if (user == leavingUser)
+						turnOff();
+				}
+				
+			});
 			return true;
 		}
 		return false;
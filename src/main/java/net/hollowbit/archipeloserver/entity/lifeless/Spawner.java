@@ -2,8 +2,6 @@ package net.hollowbit.archipeloserver.entity.lifeless;
 
 import java.util.LinkedList;
 
-import com.badlogic.gdx.math.Vector2;
-
 import net.hollowbit.archipeloserver.ArchipeloServer;
 import net.hollowbit.archipeloserver.entity.Entity;
 import net.hollowbit.archipeloserver.entity.EntityAnimationManager.EntityAnimationObject;
@@ -13,6 +11,7 @@ import net.hollowbit.archipeloserver.tools.StaticTools;
 import net.hollowbit.archipeloserver.tools.event.EventHandler;
 import net.hollowbit.archipeloserver.tools.event.EventType;
 import net.hollowbit.archipeloserver.tools.event.events.editable.EntityDeathEvent;
+import net.hollowbit.archipeloserver.tools.scheduler.ScheduledTask;
 import net.hollowbit.archipeloserver.world.Map;
 import net.hollowbit.archipeloshared.EntitySnapshot;
 import net.hollowbit.archipeloshared.Point;
@@ -25,7 +24,7 @@ public class Spawner extends LifelessEntity implements EventHandler {
 	private SavedRectangle spawnRect;
 	private int spawnAmount;
 	private float spawnRate;
-	private float timer;
+	private ScheduledTask spawnTask;
 	private EntityType spawnType;
 	private LinkedList<Entity> spawnedEntities;
 	
@@ -38,34 +37,48 @@ public class Spawner extends LifelessEntity implements EventHandler {
 		this.spawnRect = fullSnapshot.getObject("spawnRect", new SavedRectangle((int) this.location.getX(), (int) this.location.getY(), ArchipeloServer.TILE_SIZE, ArchipeloServer.TILE_SIZE), SavedRectangle.class);
 		this.spawnAmount = fullSnapshot.getInt("spawnAmount", 4);
 		this.spawnRate = fullSnapshot.getFloat("spawnRate", 3f);
-		this.timer = 0;
 		this.spawnType = EntityType.getEntityTypeById(spawnSnapshot.type);
 		this.addToEventManager(EventType.EntityDeath);
+		scheduleSpawn(spawnRate);
 	}
 	
-	@Override
-	public void tick20(float deltaTime) {
-		if (spawnedEntities.size() < spawnAmount) {//Only spawn entities if under max
-			timer += deltaTime;
-			if (timer > spawnRate) {
+	/**
+	 * Schedules the next spawn if under the max and one isn't already scheduled.
+	 * @param delay
+	 */
+	private void scheduleSpawn(float delay) {
+		if (spawnTask != null || spawnedEntities.size() >= spawnAmount)
+			return;
+		
+		spawnTask = getMap().getScheduler().runLater(new Runnable() {
+			
+			@Override
+			public void run() {
+				spawnTask = null;
 				if (spawn())
-					timer = 0;
+					scheduleSpawn(spawnRate);
+				else
+					scheduleSpawn(ArchipeloServer.TICK20);//Spawn area was blocked, try again soon
 			}
-		}
-		
-		super.tick20(deltaTime);
+			
+		}, delay);
 	}
 	
 	@Override
 	public void remove() {
 		this.removeFromEventManager();
+		if (spawnTask != null)
+			spawnTask.cancel();
 		super.remove();
 	}
 	
 	@Override
 	public boolean onEntityDeath(EntityDeathEvent event) {
-		if (event.getEntity().getMap() == this.getMap() && event.getEntity().getEntityType() == spawnType)
-			return spawnedEntities.remove(event.getEntity());
+		if (event.getEntity().getMap() == this.getMap() && event.getEntity().getEntityType() == spawnType) {
+			boolean removed = spawnedEntities.remove(event.getEntity());
+			scheduleSpawn(spawnRate);
+			return removed;
+		}
 		return false;
 	}
 	
@@ -85,7 +98,7 @@ public class Spawner extends LifelessEntity implements EventHandler {
 		duplicate.putObject("pos", new Point(x, y));
 		Entity entity = EntityType.createEntityBySnapshot(duplicate, getMap());
 		
-		if (getMap().collidesWithMap(entity.getCollisionRects(new Vector2(x, y)), entity))
+		if (getMap().collidesWithMap(entity.getCollisionRects(x, y), entity))
 			return false;
 		
 		this.spawnedEntities.add(entity);
@@ -1,9 +1,9 @@
 package net.hollowbit.archipeloserver.entity.living;
 
 import java.sql.Date;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.Random;
 import java.util.UUID;
 
@@ -48,11 +48,12 @@ import net.hollowbit.archipeloserver.tools.event.EventType;
 import net.hollowbit.archipeloserver.tools.event.events.editable.EntityDeathEvent;
 import net.hollowbit.archipeloserver.tools.event.events.readonly.PlayerJoinEvent;
 import net.hollowbit.archipeloserver.tools.event.events.readonly.PlayerLeaveEvent;
+import net.hollowbit.archipeloserver.tools.profiler.TickProfiler;
 import net.hollowbit.archipeloserver.world.Map;
+import net.hollowbit.archipeloserver.world.map.EntityHitQuery.RectHits;
 import net.hollowbit.archipeloshared.Controls;
 import net.hollowbit.archipeloshared.Direction;
 import net.hollowbit.archipeloshared.EntitySnapshot;
-import net.hollowbit.archipeloshared.HitCalculator;
 import net.hollowbit.archipeloshared.RollableEntity;
 import net.hollowbit.archipeloshared.SavedLocation;
 import net.hollowbit.archipeloshared.TileSoundType;
@@ -85,18 +86,26 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 	
 	public static final float PERMITTED_ERROR_MULTIPLIER = 20;
 	
-	public static final int CONTROLS_UPDATE_RATE = 1000 / 30;
 	public static final float CONTROLS_DELTA_TIME = 1 / 30f;
-	public static final int CONTROLS_UPDATE_DELAY = 35;
+	public static final int CONTROLS_UPDATE_DELAY = 35;//Commands are held this long before running to smooth out network jitter
 	public static final int WORLD_SNAPSHOT_DELAY = 100;
 	
+	//Indices of the player's animations, so the current animation can be checked without comparing ids
+	private static final int ANIMATION_DEFAULT = EntityType.PLAYER.getAnimationIndex("default");
+	private static final int ANIMATION_WALK = EntityType.PLAYER.getAnimationIndex("walk");
+	private static final int ANIMATION_SPRINT = EntityType.PLAYER.getAnimationIndex("sprint");
+	private static final int ANIMATION_ROLL = EntityType.PLAYER.getAnimationIndex("roll");
+	private static final int ANIMATION_THRUST = EntityType.PLAYER.getAnimationIndex("thrust");
+	private static final int ANIMATION_USE = EntityType.PLAYER.getAnimationIndex("use");
+	private static final int ANIMATION_USEWALK = EntityType.PLAYER.getAnimationIndex("usewalk");
+	
 	String id;
 	String address;
 	boolean firstTimeLogin;
 	boolean[] controls;
 	Direction rollingDirection;
 	boolean newOnMap = false;//This is to know if the player needs to be sent a new map.
-	float rollDoubleClickTimer = 0;
+	long lastRollPressTime = 0;//When roll was first pressed, 0 if not waiting for a double-click
 	boolean wasMoving;
 	Date lastPlayed, creationDate;
 	HollowBitUser hbUser;
@@ -104,74 +113,19 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 	PlayerFlagsManager flagsManager;
 	PlayerInventory inventory;
 	PlayerStatsManager statsManager;
-	LinkedList<ControlsPacket> commandsToExecute;
+	ArrayDeque<ControlsPacket> commandsToExecute;
 	Random random;
 	int seed;
 	SavedLocation respawnLocation;
 	EventHandler respawner;
 	boolean movementEnabled = true;
-	float timeAttackHeld = 0;
+	long attackPressTime = System.currentTimeMillis();
 	int ping = 0;
 	
-	Thread controlsUpdater;
-	boolean running = true;
-	
 	public Player (String name, String address, boolean firstTimeLogin) {
 		this.create(name, 0, location, address, firstTimeLogin);
-		commandsToExecute = new LinkedList<ControlsPacket>();
+		commandsToExecute = new ArrayDeque<ControlsPacket>();
 		
-		controlsUpdater = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				while (running) {
-					long startTime = System.currentTimeMillis();
-					LinkedList<ControlsPacket> packetsToRemove = new LinkedList<ControlsPacket>();
-					for (ControlsPacket cPacket : getCommandsClone()) {
-						if (cPacket.time <= System.currentTimeMillis() - CONTROLS_UPDATE_DELAY) {
-							packetsToRemove.add(cPacket);
-							boolean[] newControls = cPacket.parse();
-							
-							if (newControls == null || newControls.length != Controls.TOTAL)//Prevent invalid controls packets
-								return;
-							
-							//duplicate controls since they will be replaced
-							boolean[] oldControls = new boolean[controls.length];
-							for (int i = 0; i < controls.length; i++)
-								oldControls[i] = controls[i];
-							applyControlExceptions(newControls);
-							controls = newControls;
-							
-							//Loops through all controls to handle them one by one.
-							for (int i = 0; i < Controls.TOTAL; i++) {
-								//Checks for control change and executes controlUp/Down if there is a one.
-								if (oldControls[i]) {
-									if (!controls[i])
-										controlUp(i);
-								} else {
-									if (controls[i])
-										controlDown(i);
-								}
-							}
-							
-							updateControls(newControls, CONTROLS_DELTA_TIME);
-							sendPacket(new PositionCorrectionPacket(location.pos.x, location.pos.y, cPacket.id));
-						}
-					}
-					removeAllCommands(packetsToRemove);
-					
-					//Sleep thread to make up for update rate
-					long delta = System.currentTimeMillis() - startTime;
-					if (delta < CONTROLS_UPDATE_RATE) {
-						try {
-							Thread.sleep(CONTROLS_UPDATE_RATE - delta);
-						} catch (InterruptedException e) {
-							
-						}
-					}
-				}
-			}
-		});
-		controlsUpdater.start();
 		
 		final Player player = this;
 		//Prevents the player from being removed when dead. Simply teleports them.
@@ -243,15 +197,7 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 	
 	@Override
 	public void tick60 (float deltaTime) {
-		this.timeAttackHeld += deltaTime;
-		
-		//Tick timer for roll double-click
-		if (rollDoubleClickTimer >= 0) {
-			rollDoubleClickTimer -= deltaTime;
-			if (rollDoubleClickTimer < 0)
-				rollDoubleClickTimer = 0;
-		}
-		
+		processCommands(System.currentTimeMillis());
 		super.tick60(deltaTime);
 	}
 	
@@ -295,7 +241,7 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 	
 	@Override
 	public boolean isMoving () {
-		return (controls[Controls.UP] || controls[Controls.LEFT] || controls[Controls.DOWN] || controls[Controls.RIGHT]) && !animationManager.getAnimationId().equals("thrust") && !controls[Controls.MOVEMENT_LOCK] && movementEnabled;
+		return (controls[Controls.UP] || controls[Controls.LEFT] || controls[Controls.DOWN] || controls[Controls.RIGHT]) && animationManager.getAnimationIndex() != ANIMATION_THRUST && !controls[Controls.MOVEMENT_LOCK] && movementEnabled;
 	}
 	
 	public boolean isSprinting () {
@@ -308,7 +254,7 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 	
 	@Override
 	public boolean isRolling () {
-		return animationManager.getAnimationId().equals("roll");
+		return animationManager.getAnimationIndex() == ANIMATION_ROLL;
 	}
 	
 	/**
@@ -317,7 +263,8 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 	 * @return
 	 */
 	private boolean isUsing () {
-		return animationManager.getAnimationId().equals("use") || animationManager.getAnimationId().equals("usewalk");
+		int animationIndex = animationManager.getAnimationIndex();
+		return animationIndex == ANIMATION_USE || animationIndex == ANIMATION_USEWALK;
 	}
 	
 	/**
@@ -333,7 +280,7 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 	 * @return
 	 */
 	public boolean isThrusting () {
-		return animationManager.getAnimationId().equals("thrust");
+		return animationManager.getAnimationIndex() == ANIMATION_THRUST;
 	}
 	
 	@Override
@@ -396,14 +343,7 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 	 */
 	public void remove (LogoutReason reason, String alt) {
 		super.remove();
-		
-		//Close controls thread
-		try {
-			running = false;
-			controlsUpdater.join();
-		} catch (InterruptedException e) {
-			ArchipeloServer.getServer().getLogger().caution("Was unable to join controls thread for player: " + name);
-		}
+		clearCommands();
 		
 		//Remove other resources
 		statsManager.dispose();
@@ -428,6 +368,14 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 	}
 	
 	
+	/**
+	 * Seconds since the current attack started.
+	 * @return
+	 */
+	private float getTimeAttackHeld () {
+		return (System.currentTimeMillis() - attackPressTime) / 1000f;
+	}
+	
 	private void controlUp (int control) {
 		long time = System.currentTimeMillis() - CONTROLS_UPDATE_DELAY - WORLD_SNAPSHOT_DELAY - ping;
 		switch (control) {
@@ -436,15 +384,15 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 				animationManager.endCurrentAnimation();
 				Item item = inventory.getWeaponInventory().getRawStorage()[0];
 				if (item != null && item.getType() != null)
-					item.useHold(this, timeAttackHeld, time);
+					item.useHold(this, getTimeAttackHeld(), time);
 			}
 			break;
 		case Controls.ROLL:
 			if (!isRolling() && !isCurrentlyUsingAnItem()) {
 				if (isMoving())
-					animationManager.change("walk");
+					animationManager.change(ANIMATION_WALK);
 				else
-					animationManager.change("default");
+					animationManager.change(ANIMATION_DEFAULT);
 			}
 			break;
 		case Controls.UP:
@@ -454,14 +402,14 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 			if (!isRolling() && !isThrusting()) {
 				if (isMoving()) {
 					if (isUsing())
-						animationManager.changeWithoutReset("usewalk");
+						animationManager.changeWithoutReset(ANIMATION_USEWALK);
 					else
-						animationManager.change("walk");
+						animationManager.change(ANIMATION_WALK);
 				} else {
 					if (isUsing())
-						animationManager.changeWithoutReset("use");
+						animationManager.changeWithoutReset(ANIMATION_USE);
 					else
-						animationManager.change("default");
+						animationManager.change(ANIMATION_DEFAULT);
 				}
 			}
 			break;
@@ -473,13 +421,14 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 		switch (control) {
 		case Controls.ROLL:
 			if (!isCurrentlyUsingAnItem() && isMoving()) {
-				animationManager.change("sprint");
-				if (rollDoubleClickTimer <= 0) {
-					rollDoubleClickTimer = ROLL_DOUBLE_CLICK_DURATION;
+				animationManager.change(ANIMATION_SPRINT);
+				long currentTime = System.currentTimeMillis();
+				if (lastRollPressTime == 0 || currentTime - lastRollPressTime > ROLL_DOUBLE_CLICK_DURATION * 1000) {
+					lastRollPressTime = currentTime;
 				} else {
-					rollDoubleClickTimer = 0;
+					lastRollPressTime = 0;
 					if (!isRolling()) {//Don't roll if already rolling
-						animationManager.change("roll", "" + getMovementDirection().ordinal());
+						animationManager.change(ANIMATION_ROLL, "" + getMovementDirection().ordinal());
 						sendPacket(new PopupTextPacket("{youJustRolled}", PopupTextPacket.Type.NORMAL));
 						sendPacket(new ChatMessagePacket("{serverTag}", "{youJustRolled}", "server"));
 					}
@@ -491,23 +440,20 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 			if (isCurrentlyUsingAnItem()) {
 				Item item = inventory.getWeaponInventory().getRawStorage()[0];
 				if (item != null && item.getType() != null)
-					item.useDoubleTap(this, timeAttackHeld, time);
+					item.useDoubleTap(this, getTimeAttackHeld(), time);
 			} else if (!isRolling()) {
-				ArrayList<Entity> entitiesOnMap = (ArrayList<Entity>) location.getMap().getEntities();
 				boolean useHitAnimation = true;
 				
-				for (Entity entity : entitiesOnMap) {
-					if (entity == this)
-						continue;
+				//Run hit event for every collision rect hit on an entity
+				Vector2 centerPoint = this.getCenterPoint();
+				RectHits hits = location.getMap().getHitQuery().getRectsHit(this, centerPoint.x, centerPoint.y, DEFAULT_HIT_RANGE, location.getDirection(), time);
+				for (int i = 0; i < hits.size(); i++) {
+					Entity entity = hits.getEntity(i);
+					this.interactWith(entity, hits.getRectName(i), null, EntityInteractionType.HIT);
 					
-					//Run hit event for every collision rect hit on entity
-					for (String rectHit : HitCalculator.getCollRectsHit(this.getCenterPoint().x, this.getCenterPoint().y, entity.getCollisionRects(time), DEFAULT_HIT_RANGE, location.getDirection())) {
-						this.interactWith(entity, rectHit, null, EntityInteractionType.HIT);
-						
-						//If the entity is not hittable, don't use the animation
-						if (!entity.getEntityType().isHittable())
-							useHitAnimation = false;
-					}
+					//If the entity is not hittable, don't use the animation
+					if (!entity.getEntityType().isHittable())
+						useHitAnimation = false;
 				}
 				
 				//Use item if no "non-hittable" entity hit
@@ -515,7 +461,7 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 					Item item = inventory.getWeaponInventory().getRawStorage()[0];
 					
 					if (item != null && item.getType() != null) {
-						timeAttackHeld = 0;
+						attackPressTime = System.currentTimeMillis();
 						UseTypeSettings settings = item.useTap(this, time);
 						if (settings != null)
 							playUseAnimation(item, settings.animationType, item.getType().getUseAnimationByUseType(settings.animationType).usesThrust(), settings.soundType);
@@ -530,9 +476,9 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 		case Controls.RIGHT:
 			if (!isRolling()) {
 				if (isUsing())
-					animationManager.changeWithoutReset("usewalk");
+					animationManager.changeWithoutReset(ANIMATION_USEWALK);
 				else
-					animationManager.change("walk");
+					animationManager.change(ANIMATION_WALK);
 			}
 			break;
 		}
@@ -566,12 +512,12 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 		else
 			animationInfo = ItemUseAnimation.DEFAULT;
 		if (thrust) {
-			animationManager.change("thrust", animationMeta, useAnimationLength, animationInfo.doesStick(), animationInfo.canEndEarly());
+			animationManager.change(ANIMATION_THRUST, animationMeta, useAnimationLength, animationInfo.doesStick(), animationInfo.canEndEarly());
 		} else {
 			if (isMoving())
-				animationManager.change("usewalk", animationMeta, useAnimationLength, animationInfo.doesStick(), animationInfo.canEndEarly());
+				animationManager.change(ANIMATION_USEWALK, animationMeta, useAnimationLength, animationInfo.doesStick(), animationInfo.canEndEarly());
 			else
-				animationManager.change("use", animationMeta, useAnimationLength, animationInfo.doesStick(), animationInfo.canEndEarly());
+				animationManager.change(ANIMATION_USE, animationMeta, useAnimationLength, animationInfo.doesStick(), animationInfo.canEndEarly());
 		}
 	}
 	
@@ -587,19 +533,60 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 		return ArchipeloServer.getServer().getNetworkManager().getConnectionByAddress(address);
 	}
 	
+	/**
+	 * Runs all queued controls commands that have waited at least CONTROLS_UPDATE_DELAY, oldest first.
+	 * Called from the player's tick so commands are applied on the map's thread like everything else.
+	 * @param currentTime
+	 */
+	public void processCommands (long currentTime) {
+		ControlsPacket cPacket;
+		while ((cPacket = pollDueCommand(currentTime - CONTROLS_UPDATE_DELAY)) != null) {
+			boolean[] newControls = cPacket.parse();
+			if (newControls == null || newControls.length != Controls.TOTAL)//Drop invalid controls packets
+				continue;
+			
+			//duplicate controls since they will be replaced
+			boolean[] oldControls = new boolean[controls.length];
+			for (int i = 0; i < controls.length; i++)
+				oldControls[i] = controls[i];
+			applyControlExceptions(newControls);
+			controls = newControls;
+			
+			//Loops through all controls to handle them one by one.
+			for (int i = 0; i < Controls.TOTAL; i++) {
+				//Checks for control change and executes controlUp/Down if there is a one.
+				if (oldControls[i]) {
+					if (!controls[i])
+						controlUp(i);
+				} else {
+					if (controls[i])
+						controlDown(i);
+				}
+			}
+			
+			updateControls(newControls, CONTROLS_DELTA_TIME);
+			sendPacket(new PositionCorrectionPacket(location.getX(), location.getY(), cPacket.id));
+		}
+	}
+	
 	private synchronized void addCommand (ControlsPacket packet) {
 		commandsToExecute.add(packet);
 	}
 	
-	private synchronized ArrayList<ControlsPacket> getCommandsClone () {
-		ArrayList<ControlsPacket> packets = new ArrayList<ControlsPacket>();
-		for (ControlsPacket command : commandsToExecute)
-			packets.add(command);
-		return packets;
+	/**
+	 * Removes and returns the oldest command if it was received at or before the given time.
+	 * @param time
+	 * @return Null if there is no command due yet
+	 */
+	private synchronized ControlsPacket pollDueCommand (long time) {
+		ControlsPacket command = commandsToExecute.peek();
+		if (command == null || command.time > time)
+			return null;
+		return commandsToExecute.poll();
 	}
 	
-	private synchronized void removeAllCommands (LinkedList<ControlsPacket> commandsToRemove) {
-		commandsToExecute.removeAll(commandsToRemove);
+	private synchronized void clearCommands () {
+		commandsToExecute.clear();
 	}
 	
 	@Override
@@ -672,14 +659,47 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 		} else if (label.equalsIgnoreCase("ping")) {
 			this.sendPacket(new ChatMessagePacket("", "{pong} " + ping + "ms", "server"));
 		} else if (label.equalsIgnoreCase("logoff") || label.equalsIgnoreCase("exit") || label.equalsIgnoreCase("logout")) {
-			this.remove(LogoutReason.LEAVE, "");
+			//Commands are handled on the network update, so remove the player on its map's thread
+			this.postToMap(new Runnable() {
+				
+				@Override
+				public void run() {
+					if (!isRemoved())
+						remove(LogoutReason.LEAVE, "");
+				}
+				
+			});
+		} else if (label.equalsIgnoreCase("profiler")) {//show or control the tick profiler
+			if (!ArchipeloServer.getServer().getConfig().isAdmin(name)) {
+				this.sendPacket(new ChatMessagePacket("", "{noPermission}", "server"));
+				return;
+			}
+			
+			TickProfiler profiler = ArchipeloServer.getServer().getTickProfiler();
+			if (args.length == 1) {
+				if (args[0].equalsIgnoreCase("on"))
+					profiler.setEnabled(true);
+				else if (args[0].equalsIgnoreCase("off"))
+					profiler.setEnabled(false);
+				else if (args[0].equalsIgnoreCase("reset"))
+					profiler.reset();
+				else {
+					this.sendPacket(new ChatMessagePacket("", "{invalidArguments}", "server"));
+					return;
+				}
+				this.sendPacket(new ChatMessagePacket("", "{commandSuccessful}", "server"));
+				return;
+			}
+			
+			for (String line : profiler.getSummary())
+				this.sendPacket(new ChatMessagePacket("", line, "server"));
 		} else if (label.equalsIgnoreCase("give")) {//give items to a player
 			if (args.length != 3 && args.length != 4) {
 				this.sendPacket(new ChatMessagePacket("", "{invalidArguments}", "server"));
 				return;
 			}
 			
-			Player target = location.getMap().getEntityManager().getPlayer(args[0]);
+			final Player target = location.getMap().getEntityManager().getPlayer(args[0]);
 			if (target == null) {
 				this.sendPacket(new ChatMessagePacket("", "{invalidPlayer}", "server"));
 				return;
@@ -699,9 +719,18 @@ public class Player extends LivingEntity implements PacketHandler, RollableEntit
 					style = Integer.parseInt(args[3]);
 				
 				if (style >= 0 && style < itemType.numOfStyles && amount > 0) {
-					//All args are valid, give the item to the player
+					//All args are valid, give the item to the player on their map's thread since it changes their inventory
 					this.sendPacket(new ChatMessagePacket("", "{commandSuccessful}", "server"));
-					target.getInventory().add(new Item(itemType, style, amount));
+					final Item item = new Item(itemType, style, amount);
+					target.postToMap(new Runnable() {
+						
+						@Override
+						public void run() {
+							if (!target.isRemoved())
+								target.getInventory().add(item);
+						}
+						
+					});
 					return;
 				}
 			} catch (Exception e) {}
@@ -7,6 +7,7 @@ import net.hollowbit.archipeloserver.entity.LivingEntity;
 import net.hollowbit.archipeloserver.entity.components.MonsterFollowComponent;
 import net.hollowbit.archipeloserver.entity.living.movementanimation.types.KnockbackMovementAnimation;
 import net.hollowbit.archipeloserver.particles.types.EntityChunkParticles;
+import net.hollowbit.archipeloserver.tools.scheduler.ScheduledTask;
 import net.hollowbit.archipeloserver.world.Map;
 import net.hollowbit.archipeloshared.EntitySnapshot;
 
@@ -16,7 +17,7 @@ public class Slime extends LivingEntity {
 	protected float damage = -10;
 	protected float initAttackWait = 0.5f;
 	protected float attackInterval = 2;
-	protected float timer = attackInterval - initAttackWait;
+	protected ScheduledTask attackTask;
 	protected boolean engaged = false;
 	
 	@Override
@@ -37,16 +38,21 @@ public class Slime extends LivingEntity {
 		super.tick60(deltaTime);
 		
 		if (followComponent.isTargetWithinDistance(24)) {
-			engaged = true;
-			timer += deltaTime;
-			if (timer >= attackInterval) {
-				followComponent.getTarget().addMovementAnimation(new KnockbackMovementAnimation(followComponent.getTarget(), this.getLocation().getDirection(), 16, 0.2f));
-				followComponent.healTarget(-10);
-				timer -= attackInterval;
+			if (!engaged) {//Start attacking after a short wait
+				engaged = true;
+				attackTask = getMap().getScheduler().runRepeating(new Runnable() {
+					
+					@Override
+					public void run() {
+						attack();
+					}
+					
+				}, initAttackWait, attackInterval);
 			}
-		} else {
+		} else if (engaged) {
 			engaged = false;
-			timer = attackInterval - initAttackWait;
+			attackTask.cancel();
+			attackTask = null;
 		}
 		
 		if (isMoving() && !engaged)
@@ -55,6 +61,21 @@ public class Slime extends LivingEntity {
 			this.animationManager.change("default");
 	}
 	
+	protected void attack() {
+		if (!followComponent.isTargetWithinDistance(24))
+			return;
+		
+		followComponent.getTarget().addMovementAnimation(new KnockbackMovementAnimation(followComponent.getTarget(), this.getLocation().getDirection(), 16, 0.2f));
+		followComponent.healTarget(-10);
+	}
+	
+	@Override
+	public void remove() {
+		if (attackTask != null)
+			attackTask.cancel();
+		super.remove();
+	}
+	
 	@Override
 	public boolean isMoving() {
 		return followComponent.isMoving();
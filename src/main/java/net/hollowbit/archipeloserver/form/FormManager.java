@@ -91,11 +91,25 @@ public class FormManager implements PacketHandler, EventHandler {
 		if (event.getPlayer().getMap() != this.map)
 			return false;
 		
+		//Events can be triggered from any thread, so change the forms on the map's own thread
+		final Player player = event.getPlayer();
+		map.getWorld().post(map, new Runnable() {
+			
+			@Override
+			public void run() {
+				removeFormsOf(player);
+			}
+			
+		});
+		return true;
+	}
+	
+	private void removeFormsOf (Player player) {
 		ArrayList<Form> formsToRemove = new ArrayList<Form>();
 		for (Form form : formsList) {
 			if (form.getType().requestable) {
 				RequestableForm requestableForm = (RequestableForm) form;
-				if (requestableForm.getPlayer() == event.getPlayer())
+				if (requestableForm.getPlayer() == player)
 					formsToRemove.add(requestableForm);
 			}
 		}
@@ -103,7 +117,6 @@ public class FormManager implements PacketHandler, EventHandler {
 		for (Form form : formsToRemove) {
 			this.removeForm(form);
 		}
-		return true;
 	}
 	
 	/**
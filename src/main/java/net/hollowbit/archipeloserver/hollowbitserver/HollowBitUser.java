@@ -62,8 +62,18 @@ public class HollowBitUser {
 	}
 	
 	public void logout () {
-		if (this.getPlayer() != null)//Remove the player if there is one.
-			this.getPlayer().remove(LogoutReason.LEAVE, "");
+		final Player player = this.getPlayer();
+		if (player != null) {//Remove the player if there is one, on its map's thread since this is called from the network thread
+			player.postToMap(new Runnable() {
+				
+				@Override
+				public void run() {
+					if (!player.isRemoved())
+						player.remove(LogoutReason.LEAVE, "");
+				}
+				
+			});
+		}
 		this.loggedIn = false;
 	}
 	
@@ -6,7 +6,6 @@ import net.hollowbit.archipeloserver.entity.Entity;
 import net.hollowbit.archipeloserver.entity.LivingEntity;
 import net.hollowbit.archipeloserver.entity.living.Player;
 import net.hollowbit.archipeloserver.entity.living.movementanimation.types.KnockbackMovementAnimation;
-import net.hollowbit.archipeloshared.HitCalculator;
 import net.hollowbit.archipeloshared.UseTypeSettings;
 
 public abstract class UseType {
@@ -53,19 +52,14 @@ public abstract class UseType {
 	 * @param knockback
 	 */
 	protected void damageWithItem (Item item, Player user, long time, boolean knockback) {
-		ArrayList<Entity> entitiesOnMap = (ArrayList<Entity>) user.getMap().getEntities();
-		for (Entity entity : entitiesOnMap) {
-			if (entity == user || !entity.getEntityType().isHittable())
-				continue;
-			
-			//Check for entity hits
-			if (HitCalculator.didEntityHitEntityRects(user.getFootX(), user.getFootY(), entity.getCollisionRects(time), item.getType().hitRange, user.getLocation().getDirection())) {
-				if (knockback) {
-					if (entity instanceof LivingEntity)
-						((LivingEntity) entity).addMovementAnimation(new KnockbackMovementAnimation((LivingEntity) entity, user.getLocation().getDirection(), user.getStatsManager().getKnockback(item), Entity.DAMAGE_FLASH_DURATION));
-				}
-				entity.heal(-((int) user.getStatsManager().hit(item)), user);
+		ArrayList<Entity> entitiesHit = user.getMap().getHitQuery().getEntitiesHit(user, user.getFootX(), user.getFootY(), item.getType().hitRange, user.getLocation().getDirection(), time);
+		for (int i = 0; i < entitiesHit.size(); i++) {
+			Entity entity = entitiesHit.get(i);
+			if (knockback) {
+				if (entity instanceof LivingEntity)
+					((LivingEntity) entity).addMovementAnimation(new KnockbackMovementAnimation((LivingEntity) entity, user.getLocation().getDirection(), user.getStatsManager().getKnockback(item), Entity.DAMAGE_FLASH_DURATION));
 			}
+			entity.heal(-((int) user.getStatsManager().hit(item)), user);
 		}
 	}
 	
@@ -7,10 +7,12 @@ import net.hollowbit.archipeloserver.network.PacketType;
 public class EntityRemovePacket extends Packet {
 	
 	public String name;
+	public int handle;
 	
 	public EntityRemovePacket (Entity entity) {
 		super(PacketType.ENTITY_REMOVE);
 		name = entity.getName();
+		handle = entity.getHandle();
 	}
 	
 }
@@ -21,6 +21,19 @@ public class Configuration {
 	public String spawnMap = "island";
 	public float spawnX = 0;
 	public float spawnY = 0;
+	public int mapShards = 0;//Number of threads to tick maps on. 0 uses one per core
+	public int mapKeepAliveSeconds = 60;//How long an empty map stays loaded
+	public float mapEvictMemoryUsage = 0.85f;//Fraction of max memory still used after garbage collection before empty maps are unloaded early
+	public String prewarmMaps = "";//Comma separated list of maps to load at startup and keep loaded, on top of the spawn map
+	public boolean profilerEnabled = true;//Time tick phases, maps and entity types and log a summary every minute
+	public boolean entityDormancy = true;//Only tick entities far from players once in a while
+	public boolean entityStateStore = true;//Keep entity positions and directions in packed arrays per map
+	public long watchdogThresholdMillis = 250;//How long a tick can take before its stack trace is written to diagnostics. 0 disables it
+	public boolean watchdogDumpAllThreads = false;//Also write the stack traces of all other threads when a tick stalls
+	public boolean eventPoolDebug = false;//Never reuse pooled events, and fail when one is used after being closed
+	public int asyncEventWorkers = 2;//Threads handling read only events for async event handlers. 0 handles them on the triggering thread
+	public int asyncEventQueueSize = 1024;//Events each async event thread can have waiting before triggering threads wait for it
+	public String admins = "";//Comma separated list of player names allowed to use admin commands
 	
 	public Configuration () {
 		File configFile = new File("config.yml");
@@ -75,6 +88,45 @@ public class Configuration {
 			case "spawnY":
 				this.spawnY = Float.parseFloat(scanner.nextLine().substring(1));
 				break;
+			case "mapShards":
+				this.mapShards = Integer.parseInt(scanner.nextLine().substring(1));
+				break;
+			case "mapKeepAliveSeconds":
+				this.mapKeepAliveSeconds = Integer.parseInt(scanner.nextLine().substring(1));
+				break;
+			case "mapEvictMemoryUsage":
+				this.mapEvictMemoryUsage = Float.parseFloat(scanner.nextLine().substring(1));
+				break;
+			case "prewarmMaps":
+				this.prewarmMaps = scanner.nextLine().substring(1);
+				break;
+			case "profilerEnabled":
+				this.profilerEnabled = Boolean.parseBoolean(scanner.nextLine().substring(1));
+				break;
+			case "entityDormancy":
+				this.entityDormancy = Boolean.parseBoolean(scanner.nextLine().substring(1));
+				break;
+			case "entityStateStore":
+				this.entityStateStore = Boolean.parseBoolean(scanner.nextLine().substring(1));
+				break;
+			case "watchdogThresholdMillis":
+				this.watchdogThresholdMillis = Long.parseLong(scanner.nextLine().substring(1));
+				break;
+			case "watchdogDumpAllThreads":
+				this.watchdogDumpAllThreads = Boolean.parseBoolean(scanner.nextLine().substring(1));
+				break;
+			case "eventPoolDebug":
+				this.eventPoolDebug = Boolean.parseBoolean(scanner.nextLine().substring(1));
+				break;
+			case "asyncEventWorkers":
+				this.asyncEventWorkers = Integer.parseInt(scanner.nextLine().substring(1));
+				break;
+			case "asyncEventQueueSize":
+				this.asyncEventQueueSize = Integer.parseInt(scanner.nextLine().substring(1));
+				break;
+			case "admins":
+				this.admins = scanner.nextLine().substring(1);
+				break;
 			}
 		}
 		scanner.close();
@@ -98,7 +150,20 @@ public class Configuration {
 			formatter.format("%s: %s\n", "region", region);
 			formatter.format("%s: %s\n", "spawnMap", spawnMap);
 			formatter.format("%s: %s\n", "spawnX", spawnX);
-			formatter.format("%s: %s", "spawnY", spawnY);
+			formatter.format("%s: %s\n", "spawnY", spawnY);
+			formatter.format("%s: %s\n", "mapShards", mapShards);
+			formatter.format("%s: %s\n", "mapKeepAliveSeconds", mapKeepAliveSeconds);
+			formatter.format("%s: %s\n", "mapEvictMemoryUsage", mapEvictMemoryUsage);
+			formatter.format("%s: %s\n", "prewarmMaps", prewarmMaps);
+			formatter.format("%s: %s\n", "profilerEnabled", profilerEnabled);
+			formatter.format("%s: %s\n", "entityDormancy", entityDormancy);
+			formatter.format("%s: %s\n", "entityStateStore", entityStateStore);
+			formatter.format("%s: %s\n", "watchdogThresholdMillis", watchdogThresholdMillis);
+			formatter.format("%s: %s\n", "watchdogDumpAllThreads", watchdogDumpAllThreads);
+			formatter.format("%s: %s\n", "eventPoolDebug", eventPoolDebug);
+			formatter.format("%s: %s\n", "asyncEventWorkers", asyncEventWorkers);
+			formatter.format("%s: %s\n", "asyncEventQueueSize", asyncEventQueueSize);
+			formatter.format("%s: %s", "admins", admins);
 			formatter.flush();
 			formatter.close();
 		} catch (FileNotFoundException e) {
@@ -106,4 +171,17 @@ public class Configuration {
 		}
 	}
 	
+	/**
+	 * Checks if a player is in the admins list.
+	 * @param playerName
+	 * @return
+	 */
+	public boolean isAdmin (String playerName) {
+		for (String admin : admins.split(",")) {
+			if (admin.trim().equalsIgnoreCase(playerName))
+				return true;
+		}
+		return false;
+	}
+	
 }
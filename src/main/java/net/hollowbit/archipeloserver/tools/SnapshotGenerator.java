@@ -1,9 +1,9 @@
 package net.hollowbit.archipeloserver.tools;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.badlogic.gdx.utils.Json;
 
@@ -14,128 +14,147 @@ import net.hollowbit.archipeloserver.world.Map;
 import net.hollowbit.archipeloserver.world.map.Chunk;
 import net.hollowbit.archipeloshared.EntityData;
 
+/**
+ * Builds and sends world snapshots. Maps are handled independently, so this may be used by several map shards at once.
+ * @author vedi0boy
+ *
+ */
 public class SnapshotGenerator {
 	
-	private HashMap<Player, HashSet<Chunk>> playerLoadedChunks;
-	private Json json;
+	private ConcurrentHashMap<Player, HashSet<Chunk>> playerLoadedChunks;
+	private ThreadLocal<Json> json;
 	
 	public SnapshotGenerator() {
-		playerLoadedChunks = new HashMap<Player, HashSet<Chunk>>();
-		json = new Json();
+		playerLoadedChunks = new ConcurrentHashMap<Player, HashSet<Chunk>>();
+		json = new ThreadLocal<Json>() {
+			
+			@Override
+			protected Json initialValue() {
+				return new Json();
+			}
+			
+		};
 	}
 	
-	public void generateAndSend(Collection<Map> maps, int worldTime) {
-		for (Map map : maps) {
-			if (!map.isLoaded())
-				continue;
+	/**
+	 * Forget which chunks a player has. Call when a player leaves.
+	 * @param player
+	 */
+	public void removePlayer(Player player) {
+		playerLoadedChunks.remove(player);
+	}
+	
+	public void generateAndSend(Map map, int worldTime) {
+		if (!map.isLoaded())
+			return;
+		
+		Json json = this.json.get();
+		HashSet<Chunk> chunksUsed = new HashSet<Chunk>();//Used to unload unused chunks at the end
+		
+		String mapSnapshot = json.toJson(map.getChangesSnapshot());
+		map.getChangesSnapshot().clear();
+		String fullMapSnapshot = json.toJson(map.getFullSnapshot());
+		
+		HashMap<Integer, HashMap<Integer, String>> entitySnapshots = new HashMap<Integer, HashMap<Integer, String>>();
+		HashMap<Integer, HashMap<Integer, String>> entityChangesSnapshots = new HashMap<Integer, HashMap<Integer, String>>();
+		HashMap<Integer, HashMap<Integer, String>> entityFullSnapshots = new HashMap<Integer, HashMap<Integer, String>>();
+		
+		for (Player player : map.getPlayers()) {
+			long timeCreated = System.currentTimeMillis();
+			WorldSnapshotPacket packet = new WorldSnapshotPacket(timeCreated, worldTime, WorldSnapshotPacket.TYPE_INTERP);
+			WorldSnapshotPacket packetChanges = new WorldSnapshotPacket(timeCreated, worldTime, WorldSnapshotPacket.TYPE_CHANGES);
+			WorldSnapshotPacket packetFull = new WorldSnapshotPacket(timeCreated, worldTime, WorldSnapshotPacket.TYPE_FULL);
 			
-			HashSet<Chunk> chunksUsed = new HashSet<Chunk>();//Used to unload unused chunks at the end
+			packetChanges.mapSnapshot = mapSnapshot;
+			packetFull.mapSnapshot = fullMapSnapshot;
 			
-			String mapSnapshot = json.toJson(map.getChangesSnapshot());
-			map.getChangesSnapshot().clear();
-			String fullMapSnapshot = json.toJson(map.getFullSnapshot());
+			HashSet<Chunk> chunksForPlayer = new HashSet<Chunk>();
 			
-			HashMap<Integer, HashMap<Integer, String>> entitySnapshots = new HashMap<Integer, HashMap<Integer, String>>();
-			HashMap<Integer, HashMap<Integer, String>> entityChangesSnapshots = new HashMap<Integer, HashMap<Integer, String>>();
-			HashMap<Integer, HashMap<Integer, String>> entityFullSnapshots = new HashMap<Integer, HashMap<Integer, String>>();
+			boolean needsFullSnapshot = player.isNewOnMap();
 			
-			for (Player player : map.getPlayers()) {
-				long timeCreated = System.currentTimeMillis();
-				WorldSnapshotPacket packet = new WorldSnapshotPacket(timeCreated, worldTime, WorldSnapshotPacket.TYPE_INTERP);
-				WorldSnapshotPacket packetChanges = new WorldSnapshotPacket(timeCreated, worldTime, WorldSnapshotPacket.TYPE_CHANGES);
-				WorldSnapshotPacket packetFull = new WorldSnapshotPacket(timeCreated, worldTime, WorldSnapshotPacket.TYPE_FULL);
-				
-				packetChanges.mapSnapshot = mapSnapshot;
-				packetFull.mapSnapshot = fullMapSnapshot;
-				
-				HashSet<Chunk> chunksForPlayer = new HashSet<Chunk>();
-				
-				boolean needsFullSnapshot = player.isNewOnMap();
-				
-				//Loop through all player adjacent chunks
-				for (int r = -1 * (WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2); r <= WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2; r++) {
-					for (int c = -1 * (WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2); c <= WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2; c++) {
-						Chunk chunk = map.loadChunk(c + player.getLocation().getChunkX(), r + player.getLocation().getChunkY());
-						
-						if (chunk == null)
-							continue;//Some chunks simply cannot be loaded because they don't exist
-						
-						chunksForPlayer.add(chunk);
-						chunksUsed.add(chunk);
-						
-						//Determine if player needs full chunk data
-						boolean hasChunk = !player.isNewOnMap() && doesPlayerHaveFullChunkAlready(player, chunk);
-						
-						int index = (r + WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2) * WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE + (c + WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2);
+			//Loop through all player adjacent chunks
+			for (int r = -1 * (WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2); r <= WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2; r++) {
+				for (int c = -1 * (WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2); c <= WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2; c++) {
+					Chunk chunk = map.loadChunk(c + player.getLocation().getChunkX(), r + player.getLocation().getChunkY());
+					
+					if (chunk == null)
+						continue;//Some chunks simply cannot be loaded because they don't exist
+					
+					chunksForPlayer.add(chunk);
+					chunksUsed.add(chunk);
+					
+					//Determine if player needs full chunk data
+					boolean hasChunk = !player.isNewOnMap() && doesPlayerHaveFullChunkAlready(player, chunk);
+					
+					int index = (r + WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2) * WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE + (c + WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2);
+					
+					//Pre-generate list of all entities in the current chunk
+					ArrayList<Entity> entitiesInChunk = new ArrayList<Entity>();
+					for (Entity entity : map.getEntities()) {
+						if (entity.getLocation().getChunkX() == chunk.getX() && entity.getLocation().getChunkY() == chunk.getY())
+							entitiesInChunk.add(entity);
+					}
+					
+					if (!hasChunk) {//If player doesn't have the chunk, create and send it the full data
+						needsFullSnapshot = true;
+						packetFull.chunks[index] = chunk.getGeneratedData();
 						
-						//Pre-generate list of all entities in the current chunk
-						ArrayList<Entity> entitiesInChunk = new ArrayList<Entity>();
-						for (Entity entity : map.getEntities()) {
-							if (entity.getLocation().getChunkX() == chunk.getX() && entity.getLocation().getChunkY() == chunk.getY())
-								entitiesInChunk.add(entity);
+						String entityDataString = getDataAtPosition(chunk.getX(), chunk.getY(), entityFullSnapshots);
+						if (entityDataString == null) {//If entity data doesn't already exist for this chunk, generate it
+							//Build entity data
+							EntityData entityData = new EntityData();
+							for (Entity entity : entitiesInChunk) {
+								entityData.entities.add(entity.getFullSnapshot());
+							}
+							entityDataString = json.toJson(entityData);
+							putDataAtPosition(entityDataString, chunk.getX(), chunk.getY(), entityFullSnapshots);
 						}
 						
-						if (!hasChunk) {//If player doesn't have the chunk, create and send it the full data
-							needsFullSnapshot = true;
-							packetFull.chunks[index] = chunk.getGeneratedData();
-							
-							String entityDataString = getDataAtPosition(chunk.getX(), chunk.getY(), entityFullSnapshots);
-							if (entityDataString == null) {//If entity data doesn't already exist for this chunk, generate it
-								//Build entity data
-								EntityData entityData = new EntityData();
-								for (Entity entity : entitiesInChunk) {
-									entityData.entities.add(entity.getFullSnapshot());
-								}
-								entityDataString = json.toJson(entityData);
-								putDataAtPosition(entityDataString, chunk.getX(), chunk.getY(), entityFullSnapshots);
+						packetFull.entities[index] = entityDataString;//Add entity data to snapshot
+					} else {
+						//Get interp data
+						String entityDataString = getDataAtPosition(chunk.getX(), chunk.getY(), entitySnapshots);
+						if (entityDataString == null) {//If entity data doesn't already exist for this chunk, generate it
+							//Build entity data
+							EntityData entityData = new EntityData();
+							for (Entity entity : entitiesInChunk) {
+								entityData.entities.add(entity.getInterpSnapshot());
 							}
-							
-							packetFull.entities[index] = entityDataString;//Add entity data to snapshot
-						} else {
-							//Get interp data
-							String entityDataString = getDataAtPosition(chunk.getX(), chunk.getY(), entitySnapshots);
-							if (entityDataString == null) {//If entity data doesn't already exist for this chunk, generate it
-								//Build entity data
-								EntityData entityData = new EntityData();
-								for (Entity entity : entitiesInChunk) {
-									entityData.entities.add(entity.getInterpSnapshot());
-								}
-								entityDataString = json.toJson(entityData);
-								putDataAtPosition(entityDataString, chunk.getX(), chunk.getY(), entitySnapshots);
-							}
-							packet.entities[index] = entityDataString;
-							
-							//Get changes data
-							entityDataString = getDataAtPosition(chunk.getX(), chunk.getY(), entityChangesSnapshots);
-							if (entityDataString == null) {//If entity data doesn't already exist for this chunk, generate it
-								//Build entity data
-								EntityData entityData = new EntityData();
-								for (Entity entity : entitiesInChunk) {
-									entityData.entities.add(entity.getChangesSnapshot());
-								}
-								entityDataString = json.toJson(entityData);
-								entityData.clear();
-								putDataAtPosition(entityDataString, chunk.getX(), chunk.getY(), entityChangesSnapshots);
+							entityDataString = json.toJson(entityData);
+							putDataAtPosition(entityDataString, chunk.getX(), chunk.getY(), entitySnapshots);
+						}
+						packet.entities[index] = entityDataString;
+						
+						//Get changes data
+						entityDataString = getDataAtPosition(chunk.getX(), chunk.getY(), entityChangesSnapshots);
+						if (entityDataString == null) {//If entity data doesn't already exist for this chunk, generate it
+							//Build entity data
+							EntityData entityData = new EntityData();
+							for (Entity entity : entitiesInChunk) {
+								entityData.entities.add(entity.getChangesSnapshot());
 							}
-							packetChanges.entities[index] = entityDataString;
+							entityDataString = json.toJson(entityData);
+							entityData.clear();
+							putDataAtPosition(entityDataString, chunk.getX(), chunk.getY(), entityChangesSnapshots);
 						}
+						packetChanges.entities[index] = entityDataString;
 					}
 				}
-				
-				player.sendPacket(packet);
-				player.sendPacket(packetChanges);
-				
-				if (needsFullSnapshot) {
-					packetFull.newMap = player.isNewOnMap();
-					player.sendPacket(packetFull);
-					player.setNewOnMap(false);
-				}
-				
-				playerLoadedChunks.put(player, chunksForPlayer);
 			}
 			
-			map.unloadChunksNotInSet(chunksUsed);
+			player.sendPacket(packet);
+			player.sendPacket(packetChanges);
+			
+			if (needsFullSnapshot) {
+				packetFull.newMap = player.isNewOnMap();
+				player.sendPacket(packetFull);
+				player.setNewOnMap(false);
+			}
+			
+			playerLoadedChunks.put(player, chunksForPlayer);
 		}
+		
+		map.unloadChunksNotInSet(chunksUsed);
 	}
 	
 	private String getDataAtPosition(int x, int y, HashMap<Integer, HashMap<Integer, String>> map) {
@@ -7,6 +7,7 @@ public class EntityStepOnData {
 	public String theirCollisionRectName;
 	public String yourCollisionRectName;
 	public Entity entity;
+	public boolean stillSteppedOn = false;//Only used by LivingEntity while it updates its step list
 	
 	public EntityStepOnData (String theirCollisionRectName, String yourCollisionRectName, Entity entity) {
 		this.theirCollisionRectName = theirCollisionRectName;
@@ -5,22 +5,34 @@ import com.badlogic.gdx.math.Vector2;
 import net.hollowbit.archipeloserver.ArchipeloServer;
 import net.hollowbit.archipeloserver.world.Map;
 import net.hollowbit.archipeloserver.world.World;
+import net.hollowbit.archipeloserver.world.map.EntityStateStore;
 import net.hollowbit.archipeloshared.ChunkData;
 import net.hollowbit.archipeloshared.Direction;
 
+/**
+ * Position, direction and map of an entity.
+ * While the entity is on a map that has an EntityStateStore, the position and direction are kept in the store and this is only a view of its slot.
+ * @author vedi0boy
+ *
+ */
 public class Location {
 	
-	public Direction direction = Direction.UP;
-	public Vector2 pos;
+	private static final Direction[] DIRECTIONS = Direction.values();
+	
+	private float x, y;//Only used while not in a store
+	private Direction direction = Direction.UP;
 	public Map map;
+	private volatile EntityStateStore store;
+	private volatile int slot = EntityStateStore.NO_SLOT;
 	
 	public Location (Map map, Vector2 pos) {
 		this.map = map;
-		this.pos = pos;
+		this.x = pos.x;
+		this.y = pos.y;
 	}
 	
 	public Location (Map map, Vector2 pos, int direction) {
-		this (map, pos, Direction.values()[direction]);
+		this (map, pos, DIRECTIONS[direction]);
 	}
 	
 	public Location (Map map, Vector2 pos, Direction direction) {
@@ -28,36 +40,109 @@ public class Location {
 		this.direction = direction;
 	}
 	
+	/**
+	 * Moves the position and direction into a slot of the store. Called by the map when the entity is added to it.
+	 * @param store
+	 * @param slot
+	 */
+	public void attach (EntityStateStore store, int slot) {
+		this.slot = slot;
+		this.store = store;
+	}
+	
+	/**
+	 * Copies the position and direction back out of the store. Called by the map when the entity is removed from it.
+	 */
+	public void detach () {
+		if (slot == EntityStateStore.NO_SLOT)
+			return;
+		
+		x = store.getX(slot);
+		y = store.getY(slot);
+		direction = DIRECTIONS[store.getDirection(slot)];
+		store = null;
+		slot = EntityStateStore.NO_SLOT;
+	}
+	
+	/**
+	 * Slot of this location in the store of its map, or NO_SLOT if it is not in one.
+	 * @return
+	 */
+	public int getSlot () {
+		return slot;
+	}
+	
 	public void set (Vector2 newPos) {
-		pos.set(newPos);
+		set(newPos.x, newPos.y);
+	}
+	
+	public void set (float x, float y) {
+		if (slot != EntityStateStore.NO_SLOT)
+			store.setPosition(slot, x, y);
+		else {
+			this.x = x;
+			this.y = y;
+		}
 	}
 	
 	public float getX () {
-		return pos.x;
+		int slot = this.slot;//Copied since other threads may read while the entity changes maps
+		EntityStateStore store = this.store;
+		if (store != null && slot != EntityStateStore.NO_SLOT)
+			return store.getX(slot);
+		return x;
 	}
 	
 	public float getY () {
-		return pos.y;
+		int slot = this.slot;
+		EntityStateStore store = this.store;
+		if (store != null && slot != EntityStateStore.NO_SLOT)
+			return store.getY(slot);
+		return y;
+	}
+	
+	/**
+	 * Returns a copy of the position.
+	 * @return
+	 */
+	public Vector2 getPosition () {
+		return new Vector2(getX(), getY());
 	}
 	
 	public int getChunkX() {
-		return (int) Math.floor((float) pos.x / ArchipeloServer.TILE_SIZE / ChunkData.SIZE);
+		return toChunk(getX());
 	}
 	
 	public int getChunkY() {
-		return (int) Math.floor((float) pos.y / ArchipeloServer.TILE_SIZE / ChunkData.SIZE);
+		return toChunk(getY());
+	}
+	
+	/**
+	 * Converts a position in pixels to the chunk it is in.
+	 * @param pixel
+	 * @return
+	 */
+	public static int toChunk (float pixel) {
+		return (int) Math.floor(pixel / ArchipeloServer.TILE_SIZE / ChunkData.SIZE);
 	}
 	
 	public int getDirectionInt () {
+		int slot = this.slot;
+		EntityStateStore store = this.store;
+		if (store != null && slot != EntityStateStore.NO_SLOT)
+			return store.getDirection(slot);
 		return direction.ordinal();
 	}
 	
 	public Direction getDirection () {
-		return direction;
+		return DIRECTIONS[getDirectionInt()];
 	}
 	
 	public void setDirection (Direction direction) {
-		this.direction = direction;
+		if (slot != EntityStateStore.NO_SLOT)
+			store.setDirection(slot, direction.ordinal());
+		else
+			this.direction = direction;
 	}
 	
 	public void setMap (Map map) {
@@ -73,11 +158,11 @@ public class Location {
 	}
 	
 	public void addY (float amount) {
-		pos.add(0, amount);
+		set(getX(), getY() + amount);
 	}
 	
 	public void addX (float amount) {
-		pos.add(amount, 0);
+		set(getX() + amount, getY());
 	}
 	
 }
@@ -0,0 +1,161 @@
+package net.hollowbit.archipeloserver.tools.event;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+
+/**
+ * Hands read only events to the handlers registered with READONLY_ASYNC priority on worker threads, so slow handlers don't add to tick time.
+ * Events with the same ordering key, like all events of one player, always go to the same worker and are handled in the order they were triggered.
+ * Each worker has a bounded queue. When it is full the triggering thread waits for room, so events are never dropped or reordered.
+ * @author vedi0boy
+ *
+ */
+public class AsyncEventDispatcher {
+	
+	private static final long POLL_MILLIS = 100;
+	private static final long FULL_WARNING_INTERVAL = 10000;//Milliseconds between warnings about full queues
+	
+	private Worker[] workers;
+	private volatile boolean running = false;
+	private volatile long lastFullWarningTime = 0;
+	
+	/**
+	 * @param workerCount Number of worker threads. 0 or less handles events on the triggering thread instead.
+	 * @param queueCapacity Events each worker can have waiting
+	 */
+	public AsyncEventDispatcher (int workerCount, int queueCapacity) {
+		workers = new Worker[Math.max(0, workerCount)];
+		for (int i = 0; i < workers.length; i++)
+			workers[i] = new Worker(queueCapacity);
+	}
+	
+	public void start () {
+		if (workers.length == 0)
+			return;
+		
+		running = true;
+		for (int i = 0; i < workers.length; i++) {
+			Thread thread = new Thread(workers[i], "async-events-" + i);
+			thread.setDaemon(true);
+			workers[i].thread = thread;
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Stops the workers. Blocks until all queued events are handled, including ones queued while the workers were exiting. Events triggered afterwards are handled on the triggering thread.
+	 */
+	public void stop () {
+		running = false;
+		for (Worker worker : workers) {
+			try {
+				if (worker.thread != null)
+					worker.thread.join();
+			} catch (InterruptedException e) {
+				ArchipeloServer.getServer().getLogger().error("Could not stop async event thread.");
+			}
+		}
+		
+		//Events queued by triggers that saw the dispatcher running after their worker had already exited
+		for (Worker worker : workers) {
+			Task task;
+			while ((task = worker.queue.poll()) != null)
+				handle(task.event, task.handlers);
+		}
+	}
+	
+	/**
+	 * Queues an event to be handled by the given handlers, in order.
+	 * @param event
+	 * @param handlers
+	 */
+	public void dispatch (Event event, EventHandler[] handlers) {
+		if (!running) {
+			handle(event, handlers);
+			return;
+		}
+		
+		Object key = event.getOrderingKey();
+		Worker worker = workers[key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % workers.length];
+		Task task = new Task(event, handlers);
+		if (!worker.queue.offer(task)) {
+			long time = System.currentTimeMillis();
+			if (time - lastFullWarningTime > FULL_WARNING_INTERVAL) {
+				lastFullWarningTime = time;
+				ArchipeloServer.getServer().getLogger().caution("Async event queue is full, triggering threads are waiting for slow event handlers.");
+			}
+			put(worker, task);
+		}
+		
+		//If stopped meanwhile, the worker and the final drain in stop() may both have missed it. Only handle it here if nobody took it yet
+		if (!running && worker.queue.remove(task))
+			handle(event, handlers);
+	}
+	
+	/**
+	 * Waits for room in the worker's queue. Interrupts don't give up the event, since handling it here would put it ahead of the ones already queued.
+	 * @param worker
+	 * @param task
+	 */
+	private void put (Worker worker, Task task) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				worker.queue.put(task);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	private void handle (Event event, EventHandler[] handlers) {
+		for (EventHandler eventHandler : handlers) {
+			try {
+				EventManager.callHandler(eventHandler, event);
+			} catch (Exception e) {
+				ArchipeloServer.getServer().getLogger().error("Async handler of " + event.getType() + " event failed: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private class Worker implements Runnable {
+		
+		private ArrayBlockingQueue<Task> queue;
+		private Thread thread;
+		
+		private Worker (int queueCapacity) {
+			queue = new ArrayBlockingQueue<Task>(Math.max(1, queueCapacity));
+		}
+		
+		@Override
+		public void run() {
+			while (running || !queue.isEmpty()) {
+				try {
+					Task task = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (task != null)
+						handle(task.event, task.handlers);
+				} catch (InterruptedException e) {}
+			}
+		}
+	
+	}
+	
+	private static class Task {
+		
+		private Event event;
+		private EventHandler[] handlers;
+		
+		private Task (Event event, EventHandler[] handlers) {
+			this.event = event;
+			this.handlers = handlers;
+		}
+	
+	}
+
+}
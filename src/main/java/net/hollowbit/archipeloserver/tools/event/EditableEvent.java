@@ -8,11 +8,22 @@ public abstract class EditableEvent extends Event implements Closeable {
 	
 	protected boolean cancelled = false;
 	protected boolean editingPrevented = false;
+	private EventPool<?> pool;//Pool this event goes back to when closed. Null if it wasn't obtained from one
+	private boolean closed = false;
 	
 	public EditableEvent(EventType type) {
 		super(type);
 	}
 	
+	/**
+	 * Trigger this event before the changes are applied.
+	 * Editable events are never given to async handlers, since they may still be changed or reused.
+	 */
+	@Override
+	public Event trigger () {
+		return ArchipeloServer.getServer().getEventManager().triggerEvent(this, true);
+	}
+	
 	/**
 	 * Will canceled the event if possible.
 	 * Returns true if the event was canceled, false otherwise.
@@ -40,10 +51,48 @@ public abstract class EditableEvent extends Event implements Closeable {
 	
 	/**
 	 * Trigger this event after the changes were applied, if the event wasn't canceled.
+	 * Pooled events go back to their pool, so they must not be used afterwards.
 	 */
 	public void close() {
+		if (pool != null) {
+			checkOpen();
+			if (closed)
+				return;//Closed twice, don't put it in the pool twice
+		}
+		
 		if (!cancelled)
 			ArchipeloServer.getServer().getEventManager().triggerEvent(this, false);
+		
+		if (pool != null) {
+			closed = true;
+			clearReferences();
+			pool.free(this);
+		}
+	}
+	
+	/**
+	 * Called when a pooled event is closed, so it doesn't keep entities in memory while it waits in the pool.
+	 */
+	protected void clearReferences() {}
+	
+	/**
+	 * Resets this event when it is taken out of a pool.
+	 * @param pool
+	 */
+	void open (EventPool<?> pool) {
+		this.pool = pool;
+		this.closed = false;
+		this.cancelled = false;
+		this.editingPrevented = false;
+		this.setHandled(false);
+	}
+	
+	/**
+	 * Throws an exception if this pooled event is used after being closed, when eventPoolDebug is on.
+	 */
+	protected void checkOpen() {
+		if (closed && EventPool.isDebug())
+			throw new IllegalStateException(getClass().getSimpleName() + " was used after being closed.");
 	}
 	
 	@Override
@@ -15,7 +15,9 @@ public abstract class Event {
 	 * Trigger this event
 	 */
 	public Event trigger () {
-		return ArchipeloServer.getServer().getEventManager().triggerEvent(this, true);
+		ArchipeloServer.getServer().getEventManager().triggerEvent(this, true);
+		ArchipeloServer.getServer().getEventManager().triggerAsync(this);
+		return this;
 	}
 
 	public EventType getType() {
@@ -38,4 +40,12 @@ public abstract class Event {
 		return false;
 	}
 	
+	/**
+	 * Async handlers get events with the same key in the order they were triggered. Null if the order doesn't matter.
+	 * @return
+	 */
+	public Object getOrderingKey () {
+		return null;
+	}
+	
 }
@@ -16,7 +16,9 @@ public enum EventHandlerPriority {
 	
 	EDITABLE_LOW(null, true),
 	EDITABLE_NORMAL(EDITABLE_LOW, true),
-	EDITABLE_HIGH(EDITABLE_NORMAL, true);
+	EDITABLE_HIGH(EDITABLE_NORMAL, true),
+	
+	READONLY_ASYNC(null, false);//Handles read only events on a worker thread after the others, in order per player. For slow handlers like logging and saving
 	
 	protected EventHandlerPriority nextLowest;
 	protected boolean canEditEvents;
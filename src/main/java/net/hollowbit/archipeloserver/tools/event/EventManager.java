@@ -1,19 +1,56 @@
 package net.hollowbit.archipeloserver.tools.event;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 
+import net.hollowbit.archipeloserver.ArchipeloServer;
+import net.hollowbit.archipeloserver.tools.Configuration;
 import net.hollowbit.archipeloserver.tools.event.events.editable.*;
 import net.hollowbit.archipeloserver.tools.event.events.readonly.*;
+import net.hollowbit.archipeloserver.tools.profiler.TickProfiler;
 
 public class EventManager {
 	
-	private LinkedList<EventHandler> eventHandlers;
-	private HashMap<EventHandler, HashMap<EventType, EventHandlerPriority>> priorityMap;
+	private static final EventHandler[] NO_HANDLERS = new EventHandler[0];
+	private static final EventType[] TYPES = EventType.values();
 	
+	private long nextRegistrationOrder = 0;
+	private HashMap<EventHandler, Registration> registrations;
+	private ArrayList<ArrayList<Registration>> registrationsByType;//Handlers registered to each type, in the order they were added
+	
+	//Handlers of each type sorted by priority, for editable and read only triggers. Replaced as a whole whenever they change, so triggers never lock
+	private volatile EventHandler[][] editableHandlers;
+	private volatile EventHandler[][] readOnlyHandlers;
+	private volatile EventHandler[][] asyncHandlers;
+	
+	private AsyncEventDispatcher asyncDispatcher;
+	
+	//Events are triggered from every map shard, so handlers can be added and removed from several threads at once
 	public EventManager () {
-		eventHandlers = new LinkedList<EventHandler>();
-		priorityMap = new HashMap<EventHandler, HashMap<EventType, EventHandlerPriority>>();
+		registrations = new HashMap<EventHandler, Registration>();
+		registrationsByType = new ArrayList<ArrayList<Registration>>();
+		for (int i = 0; i < TYPES.length; i++)
+			registrationsByType.add(new ArrayList<Registration>());
+		
+		editableHandlers = new EventHandler[TYPES.length][];
+		readOnlyHandlers = new EventHandler[TYPES.length][];
+		asyncHandlers = new EventHandler[TYPES.length][];
+		for (int i = 0; i < TYPES.length; i++) {
+			editableHandlers[i] = NO_HANDLERS;
+			readOnlyHandlers[i] = NO_HANDLERS;
+			asyncHandlers[i] = NO_HANDLERS;
+		}
+		
+		Configuration config = ArchipeloServer.getServer().getConfig();
+		asyncDispatcher = new AsyncEventDispatcher(config.asyncEventWorkers, config.asyncEventQueueSize);
+		asyncDispatcher.start();
+	}
+	
+	/**
+	 * Stops the async event workers once they handled every queued event.
+	 */
+	public void stop () {
+		asyncDispatcher.stop();
 	}
 	
 	/**
@@ -21,9 +58,9 @@ public class EventManager {
 	 * Add an event handler to manager so it can handle events
 	 * @param eventHandler
 	 */
-	public void add (EventHandler eventHandler) {
-		eventHandlers.add(eventHandler);
-		priorityMap.put(eventHandler, new HashMap<EventType, EventHandlerPriority>());
+	public synchronized void add (EventHandler eventHandler) {
+		if (!registrations.containsKey(eventHandler))
+			registrations.put(eventHandler, new Registration(eventHandler, nextRegistrationOrder++));
 	}
 	
 	/**
@@ -31,9 +68,17 @@ public class EventManager {
 	 * Remove an event handler from the manager to release it from memory.
 	 * @param eventHandler
 	 */
-	public void remove (EventHandler eventHandler) {
-		eventHandlers.remove(eventHandler);
-		priorityMap.remove(eventHandler);
+	public synchronized void remove (EventHandler eventHandler) {
+		Registration registration = registrations.remove(eventHandler);
+		if (registration == null)
+			return;
+		
+		for (EventType type : TYPES) {
+			if (registration.priorities[type.ordinal()] != EventHandlerPriority.NONE) {
+				registrationsByType.get(type.ordinal()).remove(registration);
+				rebuildHandlers(type);
+			}
+		}
 	}
 	
 	/**
@@ -43,36 +88,73 @@ public class EventManager {
 	 * @param type
 	 * @param priority
 	 */
-	public void registerPriority (EventHandler eventHandler, EventType type, EventHandlerPriority priority) {
-		HashMap<EventType, EventHandlerPriority> handlerPriorities = priorityMap.get(eventHandler);
-		if (handlerPriorities != null)
-			handlerPriorities.put(type, priority);
+	public synchronized void registerPriority (EventHandler eventHandler, EventType type, EventHandlerPriority priority) {
+		Registration registration = registrations.get(eventHandler);
+		if (registration == null || registration.priorities[type.ordinal()] == priority)
+			return;
+		
+		ArrayList<Registration> typeRegistrations = registrationsByType.get(type.ordinal());
+		if (priority == EventHandlerPriority.NONE)
+			typeRegistrations.remove(registration);
+		else if (registration.priorities[type.ordinal()] == EventHandlerPriority.NONE) {
+			//Keep the order handlers were added in, so handlers with the same priority are called in that order
+			int index = typeRegistrations.size();
+			while (index > 0 && typeRegistrations.get(index - 1).order > registration.order)
+				index--;
+			typeRegistrations.add(index, registration);
+		}
+		registration.priorities[type.ordinal()] = priority;
+		rebuildHandlers(type);
 	}
 	
 	/**
-	 * Get the priority a handler has for a certain event type.
-	 * May return EventHandlerPriority.NONE if the event handler is not registered to handle this type of event.
-	 * @param eventHandler
+	 * Returns whether any handler is registered to handle events of a type.
+	 * Can be used to skip creating events nobody will handle.
 	 * @param type
 	 * @return
 	 */
-	private EventHandlerPriority getPriorityOfHandler (EventHandler eventHandler, EventType type) {
-		HashMap<EventType, EventHandlerPriority> handlerPriorities = priorityMap.get(eventHandler);
+	public boolean hasHandlers (EventType type) {
+		return editableHandlers[type.ordinal()].length > 0 || readOnlyHandlers[type.ordinal()].length > 0 || asyncHandlers[type.ordinal()].length > 0;
+	}
+	
+	/**
+	 * Sorts the handlers of a type by priority again and replaces the arrays triggers use.
+	 * @param type
+	 */
+	private void rebuildHandlers (EventType type) {
+		ArrayList<Registration> typeRegistrations = registrationsByType.get(type.ordinal());
+		
+		EventHandler[][] newEditableHandlers = editableHandlers.clone();
+		newEditableHandlers[type.ordinal()] = sortHandlers(typeRegistrations, type, EventHandlerPriority.HIGHEST_EDITABLE);
+		editableHandlers = newEditableHandlers;
 		
-		if (handlerPriorities == null)//This could happen is the event was removed on another thread
-			return EventHandlerPriority.NONE;
+		EventHandler[][] newReadOnlyHandlers = readOnlyHandlers.clone();
+		newReadOnlyHandlers[type.ordinal()] = sortHandlers(typeRegistrations, type, EventHandlerPriority.HIGHEST_READONLY);
+		readOnlyHandlers = newReadOnlyHandlers;
 		
-		EventHandlerPriority priority = handlerPriorities.get(type);
-		if (priority == null)
-			return EventHandlerPriority.NONE;
-		else
-			return priority;
+		EventHandler[][] newAsyncHandlers = asyncHandlers.clone();
+		newAsyncHandlers[type.ordinal()] = sortHandlers(typeRegistrations, type, EventHandlerPriority.READONLY_ASYNC);
+		asyncHandlers = newAsyncHandlers;
 	}
 	
-	private LinkedList<EventHandler> cloneHandlerList() {
-		LinkedList<EventHandler> handlersClone = new LinkedList<EventHandler>();
-		handlersClone.addAll(eventHandlers);
-		return handlersClone;
+	/**
+	 * Lists the handlers with the given priority and every lower one, highest first.
+	 * @param typeRegistrations
+	 * @param type
+	 * @param highestPriority
+	 * @return
+	 */
+	private EventHandler[] sortHandlers (ArrayList<Registration> typeRegistrations, EventType type, EventHandlerPriority highestPriority) {
+		ArrayList<EventHandler> sortedHandlers = new ArrayList<EventHandler>();
+		EventHandlerPriority priority = highestPriority;
+		while (priority != null) {
+			for (Registration registration : typeRegistrations) {
+				if (registration.priorities[type.ordinal()] == priority)
+					sortedHandlers.add(registration.eventHandler);
+			}
+			priority = priority.getNextLowest();
+		}
+		return sortedHandlers.isEmpty() ? NO_HANDLERS : sortedHandlers.toArray(new EventHandler[sortedHandlers.size()]);
 	}
 	
 	/**
@@ -81,17 +163,30 @@ public class EventManager {
 	 * @param editable
 	 */
 	public Event triggerEvent (Event event, boolean editable) {
+		TickProfiler profiler = ArchipeloServer.getServer().getTickProfiler();
+		long startTime = profiler.start();
+		dispatchEvent(event, editable);
+		profiler.record(TickProfiler.Phase.EVENT_DISPATCH, startTime);
+		return event;
+	}
+	
+	/**
+	 * Queues a read only event for the handlers registered with READONLY_ASYNC priority.
+	 * Don't call it with editable events, since they may be changed or reused after being triggered.
+	 * @param event
+	 */
+	public void triggerAsync (Event event) {
+		EventHandler[] handlers = asyncHandlers[event.getType().ordinal()];
+		if (handlers.length > 0)
+			asyncDispatcher.dispatch(event, handlers);
+	}
+	
+	private Event dispatchEvent (Event event, boolean editable) {
 		if (event.wasCancelled())
 			return event;//If the event is cancelled, don't bother triggering it.
 		
 		boolean handled = false;
-		LinkedList<EventHandler> clonedHandlerList = cloneHandlerList();
-		
-		EventHandlerPriority priority = null;
-		if (editable)
-			priority = EventHandlerPriority.HIGHEST_EDITABLE;
-		else
-			priority = EventHandlerPriority.HIGHEST_READONLY;
+		EventHandler[] handlers = editable ? editableHandlers[event.getType().ordinal()] : readOnlyHandlers[event.getType().ordinal()];
 		
 		//Prevent editing of editable events if editable is false
 		if (!editable) {
@@ -99,77 +194,76 @@ public class EventManager {
 				((EditableEvent) event).preventEditing();
 		}
 		
-		while (priority != null) {
-			for (EventHandler eventHandler : clonedHandlerList) {
-				if (event.wasCancelled())
-					return event;//Stop bothering event handlers if the event was cancelled already
-				
-				//Only handle event with this handler if it has the correct priority
-				if (getPriorityOfHandler(eventHandler, event.getType()) != priority)
-					continue;
-				
-				switch (event.getType()) {
-				case EntityMove:
-					if (eventHandler.onEntityMove((EntityMoveEvent) event))
-						handled = true;
-					break;
-				case PlayerJoin:
-					if (eventHandler.onPlayerJoin((PlayerJoinEvent) event))
-						handled = true;
-					break;
-				case PlayerLeave:
-					if (eventHandler.onPlayerLeave((PlayerLeaveEvent) event))
-						handled = true;
-					break;
-				case EntityTeleport:
-					if (eventHandler.onEntityTeleport((EntityTeleportEvent) event))
-						handled = true;
-					break;
-				case PlayerBankAdd:
-					if (eventHandler.onPlayerBankAdd((PlayerBankAddEvent) event))
-						handled = true;
-					break;
-				case PlayerInventoryAdd:
-					if (eventHandler.onPlayerInventoryAdd((PlayerInventoryAddEvent) event))
-						handled = true;
-					break;
-				case PlayerInventoryChange:
-					if (eventHandler.onPlayerInventoryChanged((PlayerInventoryChangeEvent) event))
-						handled = true;
-					break;
-				case PlayerInventoryMove:
-					if (eventHandler.onPlayerInventoryMove((PlayerInventoryMoveEvent) event))
-						handled = true;
-					break;
-				case PlayerInventoryRemove:
-					if (eventHandler.onPlayerInventoryRemove((PlayerInventoryRemoveEvent) event))
-						handled = true;
-					break;
-				case PlayerStatsChange:
-					if (eventHandler.onPlayerStatsChange((PlayerStatsChangeEvent) event))
-						handled = true;
-					break;
-				case EntityInteraction:
-					if (eventHandler.onEntityInteraction((EntityInteractionEvent) event))
-						handled = true;
-					break;
-				case EntityDeath:
-					if (eventHandler.onEntityDeath((EntityDeathEvent) event))
-						handled = true;
-					break;
-				case EntityHeal:
-					if (eventHandler.onEntityHeal((EntityHealEvent) event))
-						handled = true;
-					break;
-				}
-				event.setHandled(handled || event.wasHandled());
-			}
+		//Handlers are already sorted by priority
+		for (EventHandler eventHandler : handlers) {
+			if (event.wasCancelled())
+				return event;//Stop bothering event handlers if the event was cancelled already
 			
-			//Go to next lowest priority
-			priority = priority.getNextLowest();
+			if (callHandler(eventHandler, event))
+				handled = true;
+			event.setHandled(handled || event.wasHandled());
 		}
 		
 		return event;
 	}
 	
+	/**
+	 * Calls the method of a handler for the type of an event.
+	 * @param eventHandler
+	 * @param event
+	 * @return Whether the handler handled the event
+	 */
+	static boolean callHandler (EventHandler eventHandler, Event event) {
+		switch (event.getType()) {
+		case EntityMove:
+			return eventHandler.onEntityMove((EntityMoveEvent) event);
+		case PlayerJoin:
+			return eventHandler.onPlayerJoin((PlayerJoinEvent) event);
+		case PlayerLeave:
+			return eventHandler.onPlayerLeave((PlayerLeaveEvent) event);
+		case EntityTeleport:
+			return eventHandler.onEntityTeleport((EntityTeleportEvent) event);
+		case PlayerBankAdd:
+			return eventHandler.onPlayerBankAdd((PlayerBankAddEvent) event);
+		case PlayerInventoryAdd:
+			return eventHandler.onPlayerInventoryAdd((PlayerInventoryAddEvent) event);
+		case PlayerInventoryChange:
+			return eventHandler.onPlayerInventoryChanged((PlayerInventoryChangeEvent) event);
+		case PlayerInventoryMove:
+			return eventHandler.onPlayerInventoryMove((PlayerInventoryMoveEvent) event);
+		case PlayerInventoryRemove:
+			return eventHandler.onPlayerInventoryRemove((PlayerInventoryRemoveEvent) event);
+		case PlayerStatsChange:
+			return eventHandler.onPlayerStatsChange((PlayerStatsChangeEvent) event);
+		case EntityInteraction:
+			return eventHandler.onEntityInteraction((EntityInteractionEvent) event);
+		case EntityDeath:
+			return eventHandler.onEntityDeath((EntityDeathEvent) event);
+		case EntityHeal:
+			return eventHandler.onEntityHeal((EntityHealEvent) event);
+		}
+		return false;
+	}
+	
+	/**
+	 * Priorities a handler has for each event type.
+	 * @author vedi0boy
+	 *
+	 */
+	private static class Registration {
+		
+		private EventHandler eventHandler;
+		private long order;
+		private EventHandlerPriority[] priorities;
+		
+		private Registration (EventHandler eventHandler, long order) {
+			this.eventHandler = eventHandler;
+			this.order = order;
+			this.priorities = new EventHandlerPriority[TYPES.length];
+			for (int i = 0; i < priorities.length; i++)
+				priorities[i] = EventHandlerPriority.NONE;
+		}
+	
+	}
+	
 }
@@ -0,0 +1,67 @@
+package net.hollowbit.archipeloserver.tools.event;
+
+import java.util.ArrayList;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+
+/**
+ * Reuses editable events that are created very often, like move events, instead of allocating new ones each time.
+ * Each thread keeps its own free events, so no locking is needed. Events go back to the pool when they are closed.
+ * With eventPoolDebug on, closed events are never reused and using one after it was closed throws an exception.
+ * @author vedi0boy
+ *
+ * @param <T>
+ */
+public abstract class EventPool<T extends EditableEvent> {
+	
+	public static final int MAX_FREE_EVENTS = 32;//Per thread. Events closed beyond this are left to the garbage collector
+	
+	private ThreadLocal<ArrayList<T>> freeEvents;
+	
+	public EventPool () {
+		freeEvents = new ThreadLocal<ArrayList<T>>() {
+			
+			@Override
+			protected ArrayList<T> initialValue() {
+				return new ArrayList<T>();
+			}
+		
+		};
+	}
+	
+	/**
+	 * Creates a new event when this thread has no free ones left.
+	 * @return
+	 */
+	protected abstract T newEvent ();
+	
+	/**
+	 * Returns a free event, reset and ready to be filled in.
+	 * @return
+	 */
+	public T obtain () {
+		ArrayList<T> free = freeEvents.get();
+		T event = free.isEmpty() ? newEvent() : free.remove(free.size() - 1);
+		event.open(this);
+		return event;
+	}
+	
+	/**
+	 * Called by events when they are closed.
+	 * @param event
+	 */
+	@SuppressWarnings("unchecked")
+	void free (EditableEvent event) {
+		if (isDebug())
+			return;//Keep it closed forever so any later use is caught
+		
+		ArrayList<T> free = freeEvents.get();
+		if (free.size() < MAX_FREE_EVENTS)
+			free.add((T) event);
+	}
+	
+	static boolean isDebug () {
+		return ArchipeloServer.getServer().getConfig().eventPoolDebug;
+	}
+
+}
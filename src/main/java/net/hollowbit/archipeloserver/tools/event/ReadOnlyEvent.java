@@ -11,7 +11,9 @@ public class ReadOnlyEvent extends Event {
 	@Override
 	public Event trigger() {
 		ArchipeloServer.getServer().getEventManager().triggerEvent(this, true);
-		return ArchipeloServer.getServer().getEventManager().triggerEvent(this, false);
+		ArchipeloServer.getServer().getEventManager().triggerEvent(this, false);
+		ArchipeloServer.getServer().getEventManager().triggerAsync(this);
+		return this;
 	}
 
 }
@@ -2,19 +2,39 @@ package net.hollowbit.archipeloserver.tools.event.events.editable;
 
 import net.hollowbit.archipeloserver.entity.Entity;
 import net.hollowbit.archipeloserver.tools.event.EditableEvent;
+import net.hollowbit.archipeloserver.tools.event.EventPool;
 import net.hollowbit.archipeloserver.tools.event.EventType;
 
+/**
+ * Created for every hit and heal, so instances are pooled. Get one with obtain() and don't keep it after closing it.
+ * @author vedi0boy
+ *
+ */
 public class EntityHealEvent extends EditableEvent {
 	
+	private static final EventPool<EntityHealEvent> POOL = new EventPool<EntityHealEvent>() {
+		
+		@Override
+		protected EntityHealEvent newEvent() {
+			return new EntityHealEvent();
+		}
+	
+	};
+	
 	protected float amount;
 	protected Entity entity;
 	protected Entity healer;
 	
-	public EntityHealEvent(float amount, Entity entity, Entity healer) {
+	private EntityHealEvent() {
 		super(EventType.EntityHeal);
-		this.amount = amount;
-		this.entity = entity;
-		this.healer = healer;
+	}
+	
+	public static EntityHealEvent obtain(float amount, Entity entity, Entity healer) {
+		EntityHealEvent event = POOL.obtain();
+		event.amount = amount;
+		event.entity = entity;
+		event.healer = healer;
+		return event;
 	}
 	
 	/**
@@ -22,6 +42,7 @@ public class EntityHealEvent extends EditableEvent {
 	 * @return
 	 */
 	public float getAmount() {
+		checkOpen();
 		return amount;
 	}
 	
@@ -30,21 +51,31 @@ public class EntityHealEvent extends EditableEvent {
 	 * @param amount
 	 */
 	public void setAmount(float amount) {
+		checkOpen();
 		if (!editingPrevented)
 			this.amount = amount;
 	}
 	
 	public Entity getHealer() {
+		checkOpen();
 		return healer;
 	}
 
 	public void setHealer(Entity healer) {
+		checkOpen();
 		if (!editingPrevented)
 			this.healer = healer;
 	}
 
 	public Entity getEntity() {
+		checkOpen();
 		return entity;
 	}
+	
+	@Override
+	protected void clearReferences() {
+		entity = null;
+		healer = null;
+	}
 
 }
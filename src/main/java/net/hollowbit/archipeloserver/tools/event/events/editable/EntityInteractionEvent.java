@@ -3,9 +3,24 @@ package net.hollowbit.archipeloserver.tools.event.events.editable;
 import net.hollowbit.archipeloserver.entity.Entity;
 import net.hollowbit.archipeloserver.entity.EntityInteractionType;
 import net.hollowbit.archipeloserver.tools.event.EditableEvent;
+import net.hollowbit.archipeloserver.tools.event.EventPool;
 import net.hollowbit.archipeloserver.tools.event.EventType;
 
+/**
+ * Created for every interaction, including stepping on and off entities, so instances are pooled. Get one with obtain() and don't keep it after closing it.
+ * @author vedi0boy
+ *
+ */
 public class EntityInteractionEvent extends EditableEvent {
+	
+	private static final EventPool<EntityInteractionEvent> POOL = new EventPool<EntityInteractionEvent>() {
+		
+		@Override
+		protected EntityInteractionEvent newEvent() {
+			return new EntityInteractionEvent();
+		}
+	
+	};
 
 	private Entity executor;
 	private Entity target;
@@ -13,33 +28,49 @@ public class EntityInteractionEvent extends EditableEvent {
 	private String rectNameFrom;
 	private EntityInteractionType type;
 	
-	public EntityInteractionEvent(Entity executor, Entity target, String rectNameWith, String rectNameFrom, EntityInteractionType type) {
+	private EntityInteractionEvent() {
 		super(EventType.EntityInteraction);
-		this.executor = executor;
-		this.target = target;
-		this.rectNameWith = rectNameWith;
-		this.rectNameFrom = rectNameFrom;
-		this.type = type;
+	}
+	
+	public static EntityInteractionEvent obtain(Entity executor, Entity target, String rectNameWith, String rectNameFrom, EntityInteractionType type) {
+		EntityInteractionEvent event = POOL.obtain();
+		event.executor = executor;
+		event.target = target;
+		event.rectNameWith = rectNameWith;
+		event.rectNameFrom = rectNameFrom;
+		event.type = type;
+		return event;
 	}
 
 	public Entity getExecutor() {
+		checkOpen();
 		return executor;
 	}
 
 	public Entity getTarget() {
+		checkOpen();
 		return target;
 	}
 
 	public String getTargetRectNameWith() {
+		checkOpen();
 		return rectNameWith;
 	}
 
 	public String getTargetRectNameFrom() {
+		checkOpen();
 		return rectNameFrom;
 	}
 
 	public EntityInteractionType getInteractionType() {
+		checkOpen();
 		return type;
 	}
 	
+	@Override
+	protected void clearReferences() {
+		executor = null;
+		target = null;
+	}
+	
 }
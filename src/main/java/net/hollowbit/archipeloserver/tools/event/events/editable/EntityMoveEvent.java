@@ -4,42 +4,69 @@ import com.badlogic.gdx.math.Vector2;
 
 import net.hollowbit.archipeloserver.entity.LivingEntity;
 import net.hollowbit.archipeloserver.tools.event.EditableEvent;
+import net.hollowbit.archipeloserver.tools.event.EventPool;
 import net.hollowbit.archipeloserver.tools.event.EventType;
 
 /**
  * Move event for living entities.
+ * Created for every move, so instances are pooled. Get one with obtain() and don't keep it after closing it.
  * @author Nathanael
  *
  */
 public class EntityMoveEvent extends EditableEvent {
 	
+	private static final EventPool<EntityMoveEvent> POOL = new EventPool<EntityMoveEvent>() {
+		
+		@Override
+		protected EntityMoveEvent newEvent() {
+			return new EntityMoveEvent();
+		}
+	
+	};
+	
 	private LivingEntity entity;
 	private Vector2 oldPos, newPos;
 
-	public EntityMoveEvent(LivingEntity entity, Vector2 oldPos, Vector2 newPos) {
+	private EntityMoveEvent() {
 		super(EventType.EntityMove);
-		this.entity = entity;
-		this.oldPos = oldPos;
-		this.newPos = newPos;
+		this.oldPos = new Vector2();
+		this.newPos = new Vector2();
+	}
+	
+	public static EntityMoveEvent obtain(LivingEntity entity, float oldX, float oldY, float newX, float newY) {
+		EntityMoveEvent event = POOL.obtain();
+		event.entity = entity;
+		event.oldPos.set(oldX, oldY);
+		event.newPos.set(newX, newY);
+		return event;
 	}
 	
 	public LivingEntity getEntity () {
+		checkOpen();
 		return entity;
 	}
 
 	public Vector2 getOldPos() {
+		checkOpen();
 		return oldPos;
 	}
 
 	public Vector2 getNewPos() {
+		checkOpen();
 		return newPos;
 	}
 
 	public void setNewPos(Vector2 newPos) {
+		checkOpen();
 		if (editingPrevented)
 			return;
 		
-		this.newPos = newPos;
+		this.newPos.set(newPos);
+	}
+	
+	@Override
+	protected void clearReferences() {
+		entity = null;
 	}
 	
 }
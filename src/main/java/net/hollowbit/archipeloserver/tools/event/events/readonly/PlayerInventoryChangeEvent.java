@@ -24,6 +24,11 @@ public class PlayerInventoryChangeEvent extends ReadOnlyEvent {
 	public Player getPlayer() {
 		return player;
 	}
+	
+	@Override
+	public Object getOrderingKey() {
+		return player.getName();
+	}
 
 	public Inventory getOldInventory() {
 		return oldInventory;
@@ -25,6 +25,11 @@ public class PlayerJoinEvent extends ReadOnlyEvent {
 	public Player getPlayer() {
 		return player;
 	}
+	
+	@Override
+	public Object getOrderingKey() {
+		return player.getName();
+	}
 
 	public Date getTimeJoined() {
 		return timeJoined;
@@ -30,6 +30,11 @@ public class PlayerLeaveEvent extends Event {
 	public Player getPlayer() {
 		return player;
 	}
+	
+	@Override
+	public Object getOrderingKey() {
+		return player.getName();
+	}
 
 	public LogoutReason getReason() {
 		return reason;
@@ -26,6 +26,11 @@ public class PlayerStatsChangeEvent extends ReadOnlyEvent {
 	public Player getPlayer() {
 		return player;
 	}
+	
+	@Override
+	public Object getOrderingKey() {
+		return player.getName();
+	}
 
 	public void setPlayer(Player player) {
 		this.player = player;
@@ -0,0 +1,124 @@
+package net.hollowbit.archipeloserver.tools.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import com.badlogic.gdx.utils.Json;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+
+/**
+ * Write-behind queue for map data. Save images are queued by the tick threads and written
+ * on a separate thread so that saving never stalls gameplay.
+ * Repeated saves of the same file are coalesced so only the latest image is written.
+ * @author vedi0boy
+ *
+ */
+public class PersistenceManager {
+	
+	private static final int MIN_MILLIS = 1000 / 20;//Maximum time to wait for new images in a loop
+	
+	private LinkedHashMap<String, SaveImage> pendingImages;
+	private Json json;
+	private Thread asyncThread;
+	private volatile boolean running = false;
+	
+	public PersistenceManager () {
+		pendingImages = new LinkedHashMap<String, SaveImage>();
+		json = new Json();
+	}
+	
+	/**
+	 * Starts the writer thread
+	 */
+	public void start () {
+		if (asyncThread != null && running)
+			stop();
+		
+		running = true;
+		asyncThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				while (running) {
+					writePendingImages();
+					waitForImages();
+				}
+				writePendingImages();//Flush whatever was queued before stopping
+			}
+			
+		}, "persistence");
+		asyncThread.start();
+	}
+	
+	/**
+	 * Stops the writer thread. Blocks until all queued images are written.
+	 */
+	public void stop () {
+		try {
+			running = false;
+			wakeUp();
+			asyncThread.join();
+		} catch (Exception e) {
+			ArchipeloServer.getServer().getLogger().error("Could not stop persistence thread.");
+		}
+	}
+	
+	/**
+	 * Queue an image to be written. Replaces any image with the same key that hasn't been written yet.
+	 * @param image
+	 */
+	public synchronized void save (SaveImage image) {
+		pendingImages.put(image.getKey(), image);
+		notifyAll();
+	}
+	
+	/**
+	 * Returns the queued image with this key, or null if there is none.
+	 * Used to read data back that hasn't made it to disk yet.
+	 * @param key
+	 * @return
+	 */
+	public synchronized SaveImage getPendingImage (String key) {
+		return pendingImages.get(key);
+	}
+	
+	private void writePendingImages () {
+		for (SaveImage image : clonePendingImages()) {
+			try {
+				image.write(json);
+			} catch (IOException e) {
+				ArchipeloServer.getServer().getLogger().caution("Could not save " + image.getKey() + ". Reason: " + e.getMessage());
+			}
+			removePendingImage(image);
+		}
+	}
+	
+	private synchronized ArrayList<SaveImage> clonePendingImages () {
+		return new ArrayList<SaveImage>(pendingImages.values());
+	}
+	
+	/**
+	 * Only removes the image if it wasn't replaced by a newer one while it was being written.
+	 * @param image
+	 */
+	private synchronized void removePendingImage (SaveImage image) {
+		if (pendingImages.get(image.getKey()) == image)
+			pendingImages.remove(image.getKey());
+	}
+	
+	private synchronized void waitForImages () {
+		if (!pendingImages.isEmpty() || !running)
+			return;
+		
+		try {
+			wait(MIN_MILLIS);
+		} catch (InterruptedException e) {}
+	}
+	
+	private synchronized void wakeUp () {
+		notifyAll();
+	}
+	
+}
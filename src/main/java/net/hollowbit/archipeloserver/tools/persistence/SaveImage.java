@@ -0,0 +1,71 @@
+package net.hollowbit.archipeloserver.tools.persistence;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.badlogic.gdx.utils.Json;
+
+/**
+ * Immutable image of data to be written to disk by the PersistenceManager.
+ * Images are built on the tick threads and written later on the persistence thread,
+ * so they must not reference any state that can still change after creation.
+ * @author vedi0boy
+ *
+ */
+public abstract class SaveImage {
+	
+	private static final String TEMP_EXTENSION = ".tmp";
+	
+	protected String key;
+	
+	protected SaveImage (String key) {
+		this.key = key;
+	}
+	
+	/**
+	 * Images with the same key overwrite each other in the save queue. Only the latest one is written.
+	 * @return
+	 */
+	public String getKey () {
+		return key;
+	}
+	
+	/**
+	 * Writes this image to disk. Only called on the persistence thread.
+	 * @param json Json instance owned by the persistence thread.
+	 * @throws IOException
+	 */
+	public abstract void write (Json json) throws IOException;
+	
+	/**
+	 * Writes the data to a temporary file next to the target, then renames it over the target.
+	 * This way a crash mid-write never leaves a half written file behind.
+	 * @param file
+	 * @param data
+	 * @throws IOException
+	 */
+	protected void writeAtomically (File file, String data) throws IOException {
+		File folder = file.getParentFile();
+		if (folder != null)
+			folder.mkdirs();
+		
+		File tempFile = new File(folder, file.getName() + TEMP_EXTENSION);
+		FileWriter writer = new FileWriter(tempFile);
+		try {
+			writer.write(data);
+		} finally {
+			writer.close();
+		}
+		
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {//Some file systems can't do it, a regular replace is still better than writing in place
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+}
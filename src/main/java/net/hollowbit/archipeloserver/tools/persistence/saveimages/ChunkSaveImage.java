@@ -0,0 +1,56 @@
+package net.hollowbit.archipeloserver.tools.persistence.saveimages;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.badlogic.gdx.utils.Json;
+
+import net.hollowbit.archipeloserver.tools.persistence.SaveImage;
+import net.hollowbit.archipeloshared.EntityData;
+
+/**
+ * Image of a chunk and the entities standing in it.
+ * The entity snapshots are freshly generated save snapshots, so nothing else holds on to them.
+ * @author vedi0boy
+ *
+ */
+public class ChunkSaveImage extends SaveImage {
+	
+	private String mapName;
+	private int x, y;
+	private String chunkData;
+	private EntityData entityData;
+	
+	public ChunkSaveImage (String mapName, int x, int y, String chunkData, EntityData entityData) {
+		super(getKey(mapName, x, y));
+		this.mapName = mapName;
+		this.x = x;
+		this.y = y;
+		this.chunkData = chunkData;
+		this.entityData = entityData;
+	}
+	
+	@Override
+	public void write (Json json) throws IOException {
+		File chunkFolder = getChunkFolder(mapName, x, y);
+		writeAtomically(new File(chunkFolder, "data.json"), chunkData);
+		writeAtomically(new File(chunkFolder, "entities.json"), json.toJson(entityData));
+	}
+	
+	public String getChunkData () {
+		return chunkData;
+	}
+	
+	public EntityData getEntityData () {
+		return entityData;
+	}
+	
+	public static String getKey (String mapName, int x, int y) {
+		return "maps/" + mapName + "/chunks/" + y + "/" + x;
+	}
+	
+	public static File getChunkFolder (String mapName, int x, int y) {
+		return new File("maps/" + mapName + "/chunks/" + y + "/" + x + "/");
+	}
+	
+}
@@ -0,0 +1,47 @@
+package net.hollowbit.archipeloserver.tools.persistence.saveimages;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.badlogic.gdx.utils.Json;
+import com.badlogic.gdx.utils.JsonValue.PrettyPrintSettings;
+import com.badlogic.gdx.utils.JsonWriter;
+
+import net.hollowbit.archipeloserver.tools.persistence.SaveImage;
+import net.hollowbit.archipeloshared.MapData;
+
+/**
+ * Image of the settings.json of a map.
+ * @author vedi0boy
+ *
+ */
+public class MapSettingsSaveImage extends SaveImage {
+	
+	private String mapName;
+	private MapData data;
+	
+	public MapSettingsSaveImage (String mapName, MapData data) {
+		super(getKey(mapName));
+		this.mapName = mapName;
+		this.data = data;
+	}
+	
+	@Override
+	public void write (Json json) throws IOException {
+		PrettyPrintSettings settings = new PrettyPrintSettings();
+		settings.singleLineColumns = 30;
+		settings.wrapNumericArrays = false;
+		settings.outputType = JsonWriter.OutputType.javascript;
+		
+		writeAtomically(new File("maps/" + mapName + "/settings.json"), json.prettyPrint(data, settings));
+	}
+	
+	public MapData getData () {
+		return data;
+	}
+	
+	public static String getKey (String mapName) {
+		return "maps/" + mapName + "/settings";
+	}
+	
+}
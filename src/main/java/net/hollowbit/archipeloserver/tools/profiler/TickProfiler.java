@@ -0,0 +1,332 @@
+package net.hollowbit.archipeloserver.tools.profiler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+import net.hollowbit.archipeloserver.entity.Entity;
+import net.hollowbit.archipeloserver.entity.EntityType;
+import net.hollowbit.archipeloserver.tools.tick.TickHistogram;
+import net.hollowbit.archipeloserver.world.Map;
+
+/**
+ * Measures how long each part of the tick takes, and how much of it goes to each map and entity type.
+ * Timings are collected over a window which is logged and reset every time report() is called.
+ * Can be written to from any thread. Each thread records into its own stats, which are only merged when a summary is made,
+ * so map shards never wait on each other. Costs two calls to System.nanoTime per measurement, or nothing while disabled.
+ * @author vedi0boy
+ *
+ */
+public class TickProfiler {
+	
+	public static final long NOT_TIMED = Long.MIN_VALUE;
+	public static final int TOP_COUNT = 5;
+	
+	public enum Phase {
+		
+		NETWORK_UPDATE ("network update"),
+		MAP_TICK20 ("map tick20"),
+		MAP_TICK60 ("map tick60"),
+		SNAPSHOT ("snapshots"),
+		CHUNK_LOAD ("chunk loads"),
+		EVENT_DISPATCH ("events");
+		
+		private String label;
+		
+		private Phase (String label) {
+			this.label = label;
+		}
+		
+		public String getLabel () {
+			return label;
+		}
+	
+	}
+	
+	private volatile boolean enabled;
+	private volatile long windowStart;
+	private ThreadLocal<ThreadStats> threadStats;
+	private ConcurrentLinkedQueue<ThreadStats> allThreadStats;
+	
+	public TickProfiler (boolean enabled) {
+		this.enabled = enabled;
+		this.windowStart = System.nanoTime();
+		
+		allThreadStats = new ConcurrentLinkedQueue<ThreadStats>();
+		threadStats = new ThreadLocal<ThreadStats>() {
+			
+			@Override
+			protected ThreadStats initialValue() {
+				ThreadStats stats = new ThreadStats();
+				allThreadStats.add(stats);
+				return stats;
+			}
+		
+		};
+	}
+	
+	/**
+	 * Call before the code to measure and pass the result to one of the record methods after it.
+	 * @return
+	 */
+	public long start () {
+		if (!enabled)
+			return NOT_TIMED;
+		return System.nanoTime();
+	}
+	
+	public void record (Phase phase, long startTime) {
+		if (startTime == NOT_TIMED)
+			return;
+		
+		threadStats.get().record(phase, null, System.nanoTime() - startTime);
+	}
+	
+	/**
+	 * Records a phase that was run for a map. The time is also added to the map's own total.
+	 * @param phase
+	 * @param map
+	 * @param startTime
+	 */
+	public void record (Phase phase, Map map, long startTime) {
+		if (startTime == NOT_TIMED)
+			return;
+		
+		threadStats.get().record(phase, map.getName(), System.nanoTime() - startTime);
+	}
+	
+	/**
+	 * Records the time of one tick of an entity under its type.
+	 * @param entity
+	 * @param startTime
+	 */
+	public void record (Entity entity, long startTime) {
+		if (startTime == NOT_TIMED)
+			return;
+		
+		threadStats.get().record(entity, System.nanoTime() - startTime);
+	}
+	
+	/**
+	 * Returns a summary of the current window, one line per entry.
+	 * @return
+	 */
+	public ArrayList<String> getSummary () {
+		ArrayList<String> lines = new ArrayList<String>();
+		float windowSeconds = (System.nanoTime() - windowStart) / 1000000000f;
+		lines.add(String.format("Tick profile of the last %.0fs%s:", windowSeconds, enabled ? "" : " (disabled)"));
+		
+		ThreadStats merged = new ThreadStats();
+		for (ThreadStats stats : allThreadStats)
+			stats.addTo(merged);
+		
+		for (TimingStats stats : merged.phaseStats)
+			lines.add("  " + stats.getHistogramLine());
+		
+		lines.add("  Slowest maps:");
+		for (TimingStats stats : getTop(merged.mapStats.values()))
+			lines.add("    " + stats.getHistogramLine());
+		
+		lines.add("  Slowest entity types:");
+		ArrayList<TimingStats> entityTypes = new ArrayList<TimingStats>();
+		Collections.addAll(entityTypes, merged.entityTypeStats);
+		for (TimingStats stats : getTop(entityTypes))
+			lines.add("    " + stats.getEntityLine());
+		return lines;
+	}
+	
+	/**
+	 * Logs the summary of the current window and starts a new one.
+	 */
+	public void report () {
+		if (!enabled)
+			return;
+		
+		for (String line : getSummary())
+			ArchipeloServer.getServer().getLogger().info(line);
+		reset();
+	}
+	
+	public void reset () {
+		for (ThreadStats stats : allThreadStats)
+			stats.reset();
+		windowStart = System.nanoTime();
+	}
+	
+	public boolean isEnabled () {
+		return enabled;
+	}
+	
+	public void setEnabled (boolean enabled) {
+		if (enabled && !this.enabled)
+			reset();
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Returns the stats with the highest total time, most first. Stats with nothing recorded are left out.
+	 * @param allStats
+	 * @return
+	 */
+	private List<TimingStats> getTop (Collection<TimingStats> allStats) {
+		ArrayList<TimingStats> top = new ArrayList<TimingStats>();
+		for (TimingStats stats : allStats) {
+			if (stats.getCount() > 0)
+				top.add(stats);
+		}
+		
+		Collections.sort(top, new Comparator<TimingStats>() {
+			
+			@Override
+			public int compare (TimingStats stats1, TimingStats stats2) {
+				return Long.compare(stats2.getTotalNanos(), stats1.getTotalNanos());
+			}
+		
+		});
+		return top.subList(0, Math.min(TOP_COUNT, top.size()));
+	}
+	
+	/**
+	 * Everything one thread recorded in the current window. Only its own thread records to it,
+	 * so its lock is only ever contended while a summary is made or the window is reset.
+	 * @author vedi0boy
+	 *
+	 */
+	private static class ThreadStats {
+		
+		private TimingStats[] phaseStats;
+		private TimingStats[] entityTypeStats;
+		private HashMap<String, TimingStats> mapStats;
+		
+		ThreadStats () {
+			phaseStats = new TimingStats[Phase.values().length];
+			for (Phase phase : Phase.values())
+				phaseStats[phase.ordinal()] = new TimingStats(phase.getLabel());
+			
+			entityTypeStats = new TimingStats[EntityType.values().length];
+			for (EntityType type : EntityType.values())
+				entityTypeStats[type.ordinal()] = new TimingStats(type.getId());
+			
+			mapStats = new HashMap<String, TimingStats>();
+		}
+		
+		/**
+		 * Records a phase, and adds it to the total of the map it was run for if mapName isn't null.
+		 * @param phase
+		 * @param mapName
+		 * @param nanos
+		 */
+		synchronized void record (Phase phase, String mapName, long nanos) {
+			phaseStats[phase.ordinal()].record(nanos, null);
+			if (mapName != null)
+				getMapStats(mapName).record(nanos, null);
+		}
+		
+		synchronized void record (Entity entity, long nanos) {
+			entityTypeStats[entity.getEntityType().ordinal()].record(nanos, entity.getName());
+		}
+		
+		private TimingStats getMapStats (String mapName) {
+			TimingStats stats = mapStats.get(mapName);
+			if (stats == null) {
+				stats = new TimingStats(mapName);
+				mapStats.put(mapName, stats);
+			}
+			return stats;
+		}
+		
+		/**
+		 * Adds everything recorded here to another thread's stats.
+		 * @param merged Must only be visible to the calling thread
+		 */
+		synchronized void addTo (ThreadStats merged) {
+			for (int i = 0; i < phaseStats.length; i++)
+				merged.phaseStats[i].add(phaseStats[i]);
+			for (int i = 0; i < entityTypeStats.length; i++)
+				merged.entityTypeStats[i].add(entityTypeStats[i]);
+			for (TimingStats stats : mapStats.values())
+				merged.getMapStats(stats.name).add(stats);
+		}
+		
+		synchronized void reset () {
+			for (TimingStats stats : phaseStats)
+				stats.reset();
+			for (TimingStats stats : entityTypeStats)
+				stats.reset();
+			mapStats.clear();
+		}
+	
+	}
+	
+	/**
+	 * Timings of one thing being profiled. Not synchronized, guarded by the ThreadStats it belongs to.
+	 * @author vedi0boy
+	 *
+	 */
+	private static class TimingStats {
+		
+		private String name;
+		private TickHistogram histogram;
+		private long totalNanos;
+		private long maxNanos;
+		private String maxSource;//Name of whatever took maxNanos
+		
+		TimingStats (String name) {
+			this.name = name;
+			this.histogram = new TickHistogram();
+		}
+		
+		void record (long nanos, String source) {
+			histogram.record(nanos);
+			totalNanos += nanos;
+			if (nanos > maxNanos) {
+				maxNanos = nanos;
+				maxSource = source;
+			}
+		}
+		
+		void add (TimingStats other) {
+			histogram.add(other.histogram);
+			totalNanos += other.totalNanos;
+			if (other.maxNanos > maxNanos) {
+				maxNanos = other.maxNanos;
+				maxSource = other.maxSource;
+			}
+		}
+		
+		long getTotalNanos () {
+			return totalNanos;
+		}
+		
+		long getCount () {
+			return histogram.getCount();
+		}
+		
+		String getHistogramLine () {
+			return String.format("%s: %.1fms total over %d runs, %s", name, totalNanos / 1000000f, histogram.getCount(), histogram);
+		}
+		
+		/**
+		 * Entity ticks are usually well under a millisecond so they are shown in microseconds without percentiles.
+		 * @return
+		 */
+		String getEntityLine () {
+			long count = histogram.getCount();
+			return String.format("%s: %.1fms total over %d ticks, avg %.1fus, max %.1fus (%s)", name, totalNanos / 1000000f, count, totalNanos / (float) count / 1000f, maxNanos / 1000f, maxSource);
+		}
+		
+		void reset () {
+			histogram.reset();
+			totalNanos = 0;
+			maxNanos = 0;
+			maxSource = null;
+		}
+	
+	}
+
+}
@@ -0,0 +1,52 @@
+package net.hollowbit.archipeloserver.tools.scheduler;
+
+/**
+ * Handle to a task given to a TickScheduler. Can be used to cancel the task before it runs.
+ * @author vedi0boy
+ *
+ */
+public class ScheduledTask {
+	
+	Runnable task;
+	long dueTick;
+	int periodTicks;//0 if the task only runs once
+	ScheduledTask next;//Next task in the same wheel slot
+	private boolean cancelled = false;
+	private boolean finished = false;
+	
+	ScheduledTask (Runnable task, long dueTick, int periodTicks) {
+		this.task = task;
+		this.dueTick = dueTick;
+		this.periodTicks = periodTicks;
+	}
+	
+	/**
+	 * Stops this task from running again. Safe to call from inside the task itself or after it finished.
+	 */
+	public void cancel () {
+		cancelled = true;
+		task = null;
+	}
+	
+	public boolean isCancelled () {
+		return cancelled;
+	}
+	
+	/**
+	 * Whether this task will never run again, either because it was cancelled or because it ran and does not repeat.
+	 * @return
+	 */
+	public boolean isDone () {
+		return cancelled || finished;
+	}
+	
+	public boolean isRepeating () {
+		return periodTicks > 0;
+	}
+	
+	void finish () {
+		finished = true;
+		task = null;
+	}
+
+}
@@ -0,0 +1,161 @@
+package net.hollowbit.archipeloserver.tools.scheduler;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+
+/**
+ * Runs tasks after a delay or repeatedly, counted in 60Hz ticks, using a hierarchical timing wheel.
+ * Scheduling and cancelling are O(1) and a tick only touches the tasks that are due, no matter how many are waiting.
+ * Every map has one, advanced at the start of its tick60, so tasks run on the map's own thread.
+ * Not thread safe. Only use it from the thread of the map it belongs to.
+ * @author vedi0boy
+ *
+ */
+public class TickScheduler {
+	
+	public static final int TICKS_PER_SECOND = 60;
+	
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS_PER_WHEEL = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS_PER_WHEEL - 1;
+	private static final int NUM_OF_WHEELS = 4;
+	private static final long MAX_DELAY_TICKS = (1L << (SLOT_BITS * NUM_OF_WHEELS)) - 1;//Longer delays get rescheduled when they reach the last wheel
+	
+	private ScheduledTask[][] wheels;
+	private long currentTick = 0;
+	
+	public TickScheduler () {
+		wheels = new ScheduledTask[NUM_OF_WHEELS][SLOTS_PER_WHEEL];
+	}
+	
+	/**
+	 * Runs a task once after the given delay.
+	 * @param task
+	 * @param delay In seconds. Rounded up to the next tick.
+	 * @return Handle to cancel the task
+	 */
+	public ScheduledTask runLater (Runnable task, float delay) {
+		ScheduledTask scheduledTask = new ScheduledTask(task, currentTick + toTicks(delay), 0);
+		insert(scheduledTask);
+		return scheduledTask;
+	}
+	
+	/**
+	 * Runs a task after the given delay and then every period until cancelled.
+	 * @param task
+	 * @param delay In seconds. Rounded up to the next tick.
+	 * @param period In seconds. Rounded up to the next tick.
+	 * @return Handle to cancel the task
+	 */
+	public ScheduledTask runRepeating (Runnable task, float delay, float period) {
+		ScheduledTask scheduledTask = new ScheduledTask(task, currentTick + toTicks(delay), toTicks(period));
+		insert(scheduledTask);
+		return scheduledTask;
+	}
+	
+	/**
+	 * Advances by one tick and runs every task that is due.
+	 */
+	public void tick () {
+		currentTick++;
+		
+		//When a wheel wraps around, move the tasks of the next slot of the wheel above down into the lower wheels.
+		//Higher wheels go first since their tasks can land in a slot of a lower wheel that is also due now.
+		int highestWheel = 0;
+		while (highestWheel < NUM_OF_WHEELS - 1 && (currentTick & ((1L << (SLOT_BITS * (highestWheel + 1))) - 1)) == 0)
+			highestWheel++;
+		
+		for (int wheel = highestWheel; wheel >= 1; wheel--)
+			cascade(wheel, (int) (currentTick >>> (SLOT_BITS * wheel)) & SLOT_MASK);
+		
+		int slot = (int) currentTick & SLOT_MASK;
+		ScheduledTask scheduledTask = wheels[0][slot];
+		wheels[0][slot] = null;
+		while (scheduledTask != null) {
+			ScheduledTask next = scheduledTask.next;
+			scheduledTask.next = null;
+			run(scheduledTask);
+			scheduledTask = next;
+		}
+	}
+	
+	private void run (ScheduledTask scheduledTask) {
+		if (scheduledTask.isCancelled())
+			return;
+		
+		if (scheduledTask.dueTick > currentTick) {//Delay was longer than the wheels can hold, so it still has to wait
+			insert(scheduledTask);
+			return;
+		}
+		
+		Runnable task = scheduledTask.task;
+		try {
+			task.run();
+		} catch (Exception e) {
+			ArchipeloServer.getServer().getLogger().error("Error while running scheduled task. Reason: " + e.getMessage());
+			e.printStackTrace();
+		}
+		
+		if (scheduledTask.isCancelled())//May have been cancelled by the task itself
+			return;
+		
+		if (scheduledTask.isRepeating()) {
+			scheduledTask.dueTick += scheduledTask.periodTicks;
+			insert(scheduledTask);
+		} else
+			scheduledTask.finish();
+	}
+	
+	private void cascade (int wheel, int slot) {
+		ScheduledTask scheduledTask = wheels[wheel][slot];
+		wheels[wheel][slot] = null;
+		while (scheduledTask != null) {
+			ScheduledTask next = scheduledTask.next;
+			scheduledTask.next = null;
+			if (!scheduledTask.isCancelled())
+				insert(scheduledTask);
+			scheduledTask = next;
+		}
+	}
+	
+	/**
+	 * Puts a task in the lowest wheel whose range covers its delay.
+	 * @param scheduledTask
+	 */
+	private void insert (ScheduledTask scheduledTask) {
+		long dueTick = Math.min(scheduledTask.dueTick, currentTick + MAX_DELAY_TICKS);
+		long delay = dueTick - currentTick;
+		
+		int wheel = 0;
+		while (wheel < NUM_OF_WHEELS - 1 && delay >= (1L << (SLOT_BITS * (wheel + 1))))
+			wheel++;
+		
+		int slot = (int) (dueTick >>> (SLOT_BITS * wheel)) & SLOT_MASK;
+		scheduledTask.next = wheels[wheel][slot];
+		wheels[wheel][slot] = scheduledTask;
+	}
+	
+	/**
+	 * Removes all tasks without running them.
+	 */
+	public void clear () {
+		for (int wheel = 0; wheel < NUM_OF_WHEELS; wheel++) {
+			for (int slot = 0; slot < SLOTS_PER_WHEEL; slot++) {
+				ScheduledTask scheduledTask = wheels[wheel][slot];
+				while (scheduledTask != null) {
+					scheduledTask.cancel();
+					scheduledTask = scheduledTask.next;
+				}
+				wheels[wheel][slot] = null;
+			}
+		}
+	}
+	
+	public long getCurrentTick () {
+		return currentTick;
+	}
+	
+	private static int toTicks (float seconds) {
+		return Math.max(1, (int) Math.ceil(seconds * TICKS_PER_SECOND));
+	}
+
+}
@@ -0,0 +1,152 @@
+package net.hollowbit.archipeloserver.tools.tick;
+
+import java.util.concurrent.locks.LockSupport;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+import net.hollowbit.archipeloserver.tools.profiler.TickProfiler;
+
+/**
+ * Fixed timestep game loop. Runs sub-ticks at 60Hz and does a 20Hz tick on every third one, all on one thread.
+ * Uses System.nanoTime so timing doesn't drift. If the server falls behind, it runs ticks back to back to catch up,
+ * but only up to MAX_CATCH_UP_TICKS. Anything past that is skipped.
+ * @author vedi0boy
+ *
+ */
+public class GameLoop {
+	
+	public static final long SUB_TICK_NANOS = 1000000000L / 60;
+	public static final int SUB_TICKS_PER_TICK20 = 3;
+	public static final int MAX_CATCH_UP_TICKS = 5;//Most sub-ticks to run late before skipping ahead
+	private static final long YIELD_NANOS = 1000000;//Yield for the last millisecond instead of parking since parking isn't precise enough
+	private static final long REPORT_INTERVAL_NANOS = 60 * 1000000000L;
+	
+	private Thread thread;
+	private volatile boolean running = false;
+	private long subTick = 0;
+	private long ticksSkipped = 0;
+	private TickHistogram durationHistogram;
+	private TickHistogram latenessHistogram;
+	
+	public GameLoop () {
+		durationHistogram = new TickHistogram();
+		latenessHistogram = new TickHistogram();
+	}
+	
+	public void start () {
+		running = true;
+		thread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				loop();
+			}
+		
+		}, "game-loop");
+		thread.start();
+	}
+	
+	/**
+	 * Stops the loop and waits for the current tick to finish.
+	 */
+	public void stop () {
+		running = false;
+		if (thread == null)
+			return;
+		
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {}
+	}
+	
+	private void loop () {
+		long nextTickTime = System.nanoTime();
+		long nextReportTime = nextTickTime + REPORT_INTERVAL_NANOS;
+		
+		while (running) {
+			waitUntil(nextTickTime);
+			if (!running)
+				break;
+			
+			long startTime = System.nanoTime();
+			latenessHistogram.record(startTime - nextTickTime);
+			
+			runSubTick();
+			
+			long endTime = System.nanoTime();
+			durationHistogram.record(endTime - startTime);
+			nextTickTime += SUB_TICK_NANOS;
+			
+			//If too far behind, don't try to run all missed ticks. Skip them and carry on from now.
+			long ticksBehind = (endTime - nextTickTime) / SUB_TICK_NANOS;
+			if (ticksBehind > MAX_CATCH_UP_TICKS) {
+				ticksSkipped += ticksBehind;
+				nextTickTime += ticksBehind * SUB_TICK_NANOS;
+				ArchipeloServer.getServer().getLogger().caution("Server is running " + (ticksBehind * SUB_TICK_NANOS / 1000000) + "ms behind. Skipping " + ticksBehind + " ticks.");
+			}
+			
+			if (endTime >= nextReportTime) {
+				report();
+				nextReportTime = endTime + REPORT_INTERVAL_NANOS;
+			}
+		}
+	}
+	
+	private void runSubTick () {
+		ArchipeloServer server = ArchipeloServer.getServer();
+		ArchipeloServer.STATETIME += ArchipeloServer.TICK60;
+		
+		TickProfiler profiler = server.getTickProfiler();
+		TickWatchdog watchdog = server.getTickWatchdog();
+		watchdog.beat("network update", null);
+		long startTime = profiler.start();
+		server.getNetworkManager().update();
+		profiler.record(TickProfiler.Phase.NETWORK_UPDATE, startTime);
+		
+		watchdog.setPhase("world tick60", null);
+		server.getWorld().tick60(ArchipeloServer.TICK60);
+		
+		if (subTick % SUB_TICKS_PER_TICK20 == 0) {
+			watchdog.setPhase("world tick20", null);
+			server.getWorld().tick20(ArchipeloServer.TICK20);
+		}
+		watchdog.idle();
+		subTick++;
+	}
+	
+	/**
+	 * Parks until shortly before the given time, then yields the rest of the way.
+	 * @param time
+	 */
+	private void waitUntil (long time) {
+		long remaining = time - System.nanoTime();
+		while (remaining > 0 && running) {
+			if (remaining > YIELD_NANOS)
+				LockSupport.parkNanos(remaining - YIELD_NANOS);
+			else
+				Thread.yield();
+			remaining = time - System.nanoTime();
+		}
+	}
+	
+	private void report () {
+		ArchipeloServer.getServer().getLogger().info("Tick times: " + durationHistogram + ". Lateness: " + latenessHistogram + ". Skipped ticks: " + ticksSkipped + ".");
+		durationHistogram.reset();
+		latenessHistogram.reset();
+		ticksSkipped = 0;
+		ArchipeloServer.getServer().getTickProfiler().report();
+	}
+	
+	public TickHistogram getDurationHistogram () {
+		return durationHistogram;
+	}
+	
+	public TickHistogram getLatenessHistogram () {
+		return latenessHistogram;
+	}
+	
+	public long getSubTick () {
+		return subTick;
+	}
+
+}
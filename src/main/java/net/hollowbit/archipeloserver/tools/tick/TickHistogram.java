@@ -0,0 +1,94 @@
+package net.hollowbit.archipeloserver.tools.tick;
+
+/**
+ * Histogram of tick timings. Buckets are 250 microseconds wide up to 100ms, anything above goes in the last bucket.
+ * Only meant to be written by the game loop thread. Reading from another thread gives approximate results.
+ * @author vedi0boy
+ *
+ */
+public class TickHistogram {
+	
+	private static final long BUCKET_NANOS = 250000;
+	private static final int NUM_OF_BUCKETS = 400;
+	
+	private long[] buckets;
+	private long count;
+	private long max;
+	private long total;
+	
+	public TickHistogram () {
+		buckets = new long[NUM_OF_BUCKETS];
+	}
+	
+	public void record (long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		
+		int bucket = (int) Math.min(nanos / BUCKET_NANOS, NUM_OF_BUCKETS - 1);
+		buckets[bucket]++;
+		count++;
+		total += nanos;
+		if (nanos > max)
+			max = nanos;
+	}
+	
+	/**
+	 * Returns the upper bound of the bucket that contains the given percentile, in milliseconds.
+	 * @param percentile Between 0 and 1
+	 * @return
+	 */
+	public float getPercentileMillis (float percentile) {
+		if (count == 0)
+			return 0;
+		
+		long target = (long) Math.ceil(count * percentile);
+		long seen = 0;
+		for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= target)
+				return Math.min((i + 1) * BUCKET_NANOS, max) / 1000000f;
+		}
+		return getMaxMillis();
+	}
+	
+	public float getMaxMillis () {
+		return max / 1000000f;
+	}
+	
+	public float getAverageMillis () {
+		if (count == 0)
+			return 0;
+		return total / (float) count / 1000000f;
+	}
+	
+	public long getCount () {
+		return count;
+	}
+	
+	/**
+	 * Adds all timings recorded in another histogram to this one.
+	 * @param other
+	 */
+	public void add (TickHistogram other) {
+		for (int i = 0; i < NUM_OF_BUCKETS; i++)
+			buckets[i] += other.buckets[i];
+		count += other.count;
+		total += other.total;
+		if (other.max > max)
+			max = other.max;
+	}
+	
+	public void reset () {
+		for (int i = 0; i < NUM_OF_BUCKETS; i++)
+			buckets[i] = 0;
+		count = 0;
+		max = 0;
+		total = 0;
+	}
+	
+	@Override
+	public String toString () {
+		return String.format("avg %.2fms, p50 %.2fms, p99 %.2fms, max %.2fms", getAverageMillis(), getPercentileMillis(0.5f), getPercentileMillis(0.99f), getMaxMillis());
+	}
+
+}
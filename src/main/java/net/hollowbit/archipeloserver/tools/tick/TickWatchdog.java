@@ -0,0 +1,209 @@
+package net.hollowbit.archipeloserver.tools.tick;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Formatter;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+
+/**
+ * Watches the heartbeats of the game loop and map shard threads. If one of them stays in the same tick for longer than the threshold,
+ * its stack trace, and optionally those of all threads, are written to a rotating file in the diagnostics folder along with the phase and map it was on.
+ * Threads only write a few volatile fields to beat, so the watchdog never blocks them.
+ * @author vedi0boy
+ *
+ */
+public class TickWatchdog {
+	
+	public static final String DIAGNOSTICS_FOLDER = "diagnostics";
+	public static final String DIAGNOSTICS_FILE = "watchdog";
+	public static final long MAX_FILE_SIZE = 1024 * 1024;//Bytes before the file is rotated
+	public static final int MAX_FILES = 5;//Number of rotated files to keep
+	
+	private long thresholdNanos;
+	private boolean dumpAllThreads;
+	private Thread thread;
+	private volatile boolean running = false;
+	private CopyOnWriteArrayList<Heartbeat> heartbeats;
+	private ThreadLocal<Heartbeat> currentHeartbeat;
+	
+	/**
+	 * @param thresholdMillis How long a tick can run before a stall is recorded. 0 or less disables the watchdog.
+	 * @param dumpAllThreads Whether to also dump every other thread when there is a stall
+	 */
+	public TickWatchdog (long thresholdMillis, boolean dumpAllThreads) {
+		this.thresholdNanos = thresholdMillis * 1000000;
+		this.dumpAllThreads = dumpAllThreads;
+		this.heartbeats = new CopyOnWriteArrayList<Heartbeat>();
+		this.currentHeartbeat = new ThreadLocal<Heartbeat>() {
+			
+			@Override
+			protected Heartbeat initialValue() {
+				Heartbeat heartbeat = new Heartbeat(Thread.currentThread());
+				heartbeats.add(heartbeat);
+				return heartbeat;
+			}
+		
+		};
+	}
+	
+	public void start () {
+		if (thresholdNanos <= 0)
+			return;
+		
+		running = true;
+		thread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				watch();
+			}
+		
+		}, "tick-watchdog");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void stop () {
+		running = false;
+		if (thread != null)
+			thread.interrupt();
+	}
+	
+	/**
+	 * Call at the start of a tick or task on the current thread.
+	 * @param phase What the thread is doing
+	 * @param mapName Map being ticked, can be null
+	 */
+	public void beat (String phase, String mapName) {
+		if (!running)
+			return;
+		
+		Heartbeat heartbeat = currentHeartbeat.get();
+		heartbeat.phase = phase;
+		heartbeat.mapName = mapName;
+		heartbeat.reported = false;
+		heartbeat.startTime = System.nanoTime();
+	}
+	
+	/**
+	 * Changes what the current thread is doing without starting a new tick.
+	 * @param phase
+	 * @param mapName
+	 */
+	public void setPhase (String phase, String mapName) {
+		if (!running)
+			return;
+		
+		Heartbeat heartbeat = currentHeartbeat.get();
+		heartbeat.phase = phase;
+		heartbeat.mapName = mapName;
+	}
+	
+	/**
+	 * Call when the current thread is done with its tick or task.
+	 */
+	public void idle () {
+		if (!running)
+			return;
+		
+		currentHeartbeat.get().startTime = 0;
+	}
+	
+	private void watch () {
+		long sleepMillis = Math.max(10, thresholdNanos / 1000000 / 4);
+		while (running) {
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				break;
+			}
+			
+			long currentTime = System.nanoTime();
+			for (Heartbeat heartbeat : heartbeats) {
+				long startTime = heartbeat.startTime;
+				if (startTime == 0 || heartbeat.reported || currentTime - startTime < thresholdNanos)
+					continue;
+				
+				heartbeat.reported = true;//Only dump each stall once
+				reportStall(heartbeat, (currentTime - startTime) / 1000000);
+			}
+		}
+	}
+	
+	private void reportStall (Heartbeat heartbeat, long stalledMillis) {
+		String location = heartbeat.phase + (heartbeat.mapName != null ? " on map " + heartbeat.mapName : "");
+		ArchipeloServer.getServer().getLogger().caution("Thread " + heartbeat.thread.getName() + " has been stuck in " + location + " for " + stalledMillis + "ms. Writing stack trace to " + DIAGNOSTICS_FOLDER + ".");
+		
+		StringBuilder dump = new StringBuilder();
+		DateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd/HH:mm:ss");
+		dump.append("==== Tick stall at " + dateFormat.format(new Date()) + " ====\n");
+		dump.append("Thread " + heartbeat.thread.getName() + " in " + location + " for " + stalledMillis + "ms\n");
+		appendStackTrace(dump, heartbeat.thread.getStackTrace());
+		
+		if (dumpAllThreads) {
+			for (Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+				if (entry.getKey() == heartbeat.thread)
+					continue;
+				
+				dump.append("\nThread " + entry.getKey().getName() + " (" + entry.getKey().getState() + ")\n");
+				appendStackTrace(dump, entry.getValue());
+			}
+		}
+		dump.append("\n");
+		write(dump.toString());
+	}
+	
+	private void appendStackTrace (StringBuilder dump, StackTraceElement[] stackTrace) {
+		for (StackTraceElement element : stackTrace)
+			dump.append("\tat " + element + "\n");
+	}
+	
+	/**
+	 * Appends to the diagnostics file. Once it gets too big, it is renamed to watchdog.1.log, the old watchdog.1.log to watchdog.2.log, and so on.
+	 * @param text
+	 */
+	private void write (String text) {
+		File folder = new File(DIAGNOSTICS_FOLDER);
+		if (!folder.exists())
+			folder.mkdirs();
+		
+		File file = new File(folder, DIAGNOSTICS_FILE + ".log");
+		if (file.length() > MAX_FILE_SIZE) {
+			new File(folder, DIAGNOSTICS_FILE + "." + MAX_FILES + ".log").delete();
+			for (int i = MAX_FILES - 1; i >= 1; i--)
+				new File(folder, DIAGNOSTICS_FILE + "." + i + ".log").renameTo(new File(folder, DIAGNOSTICS_FILE + "." + (i + 1) + ".log"));
+			file.renameTo(new File(folder, DIAGNOSTICS_FILE + ".1.log"));
+		}
+		
+		try {
+			Formatter formatter = new Formatter(new FileOutputStream(file, true));
+			formatter.format("%s", text);
+			formatter.flush();
+			formatter.close();
+		} catch (FileNotFoundException e) {
+			ArchipeloServer.getServer().getLogger().error("Could not write to " + file.getPath() + ".");
+		}
+	}
+	
+	private static class Heartbeat {
+		
+		final Thread thread;
+		volatile long startTime = 0;//0 while the thread is idle
+		volatile String phase;
+		volatile String mapName;
+		volatile boolean reported = false;
+		
+		Heartbeat (Thread thread) {
+			this.thread = thread;
+		}
+	
+	}
+
+}
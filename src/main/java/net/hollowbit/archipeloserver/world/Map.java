@@ -2,30 +2,46 @@ package net.hollowbit.archipeloserver.world;
 
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.badlogic.gdx.utils.Json;
-import com.badlogic.gdx.utils.JsonValue.PrettyPrintSettings;
-import com.badlogic.gdx.utils.JsonWriter;
+import com.badlogic.gdx.utils.LongMap;
 
 import net.hollowbit.archipeloserver.ArchipeloServer;
 import net.hollowbit.archipeloserver.entity.Entity;
 import net.hollowbit.archipeloserver.entity.EntityManager;
 import net.hollowbit.archipeloserver.entity.EntityType;
+import net.hollowbit.archipeloserver.entity.LivingEntity;
 import net.hollowbit.archipeloserver.entity.living.Player;
 import net.hollowbit.archipeloserver.form.FormManager;
 import net.hollowbit.archipeloserver.network.packets.EntityAddPacket;
 import net.hollowbit.archipeloserver.network.packets.EntityRemovePacket;
+import net.hollowbit.archipeloserver.network.packets.WorldSnapshotPacket;
 import net.hollowbit.archipeloserver.particles.Particles;
 import net.hollowbit.archipeloserver.tools.npcdialogs.NpcDialogManager;
+import net.hollowbit.archipeloserver.tools.persistence.PersistenceManager;
+import net.hollowbit.archipeloserver.tools.persistence.SaveImage;
+import net.hollowbit.archipeloserver.tools.persistence.saveimages.ChunkSaveImage;
+import net.hollowbit.archipeloserver.tools.persistence.saveimages.MapSettingsSaveImage;
+import net.hollowbit.archipeloserver.tools.profiler.TickProfiler;
+import net.hollowbit.archipeloserver.tools.entity.Location;
+import net.hollowbit.archipeloserver.tools.scheduler.TickScheduler;
 import net.hollowbit.archipeloserver.world.map.Chunk;
 import net.hollowbit.archipeloserver.world.map.ChunkRow;
+import net.hollowbit.archipeloserver.world.map.EntityHitQuery;
+import net.hollowbit.archipeloserver.world.map.EntitySpatialHash;
+import net.hollowbit.archipeloserver.world.map.EntityStateStore;
+import net.hollowbit.archipeloserver.world.map.Pathfinder;
+import net.hollowbit.archipeloserver.world.map.ProximityTracker;
 import net.hollowbit.archipeloshared.ChunkData;
 import net.hollowbit.archipeloshared.ChunkLocation;
 import net.hollowbit.archipeloshared.CollisionRect;
@@ -38,6 +54,10 @@ import net.hollowbit.archipeloshared.TileData;
 
 public class Map {
 	
+	private static final int COLLISION_BOX_SIZE = ArchipeloServer.TILE_SIZE / TileData.COLLISION_MAP_SCALE;//Size of a collision cell in pixels
+	
+	private static final int AWAKE_CHUNK_RADIUS = WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2 + 1;//Entities this many chunks or less from a player are never dormant
+	
 	private static final int FADE_COLOR_WHITE = 0;
 	private static final int FADE_COLOR_BLACK = 1;
 	
@@ -57,6 +77,17 @@ public class Map {
 	private NpcDialogManager npcDialogManager;
 	private FormManager formManager;
 	private EntityManager entityManager;
+	private EntitySpatialHash entitySpatialHash;
+	private EntityHitQuery hitQuery;
+	private EntityStateStore entityStateStore;//Null if disabled in the config
+	private Pathfinder pathfinder;
+	private ProximityTracker proximityTracker;
+	private ThreadLocal<ArrayList<Entity>> nearbyEntitiesBuffer;
+	private LinkedHashSet<LivingEntity> movedEntities;//Entities that moved since the last step on check
+	private ArrayList<Entity> stepOnCandidates;
+	private ArrayList<LivingEntity> stepOnChecks;//Moved entities being checked this tick, reused
+	private TickScheduler scheduler;
+	private LongMap<Boolean> awakeChunks;//Chunks close enough to a player for their entities to be ticked every tick
 	private World world;
 	private boolean canSave;
 	private String displayName;
@@ -65,6 +96,12 @@ public class Map {
 	private boolean naturalLighting;
 	private String music;
 	private boolean loaded = false;
+	private boolean settingsChanged = false;
+	private boolean pinned = false;//Pinned maps are never unloaded for being empty
+	private boolean unloading = false;
+	private long emptySince;//Time the last player left this map
+	private int pendingArrivals = 0;//Entities sent to this map from other threads that weren't added yet
+	private CountDownLatch unloaded = new CountDownLatch(1);//Released once unload() queued everything for saving
 	Json json = new Json();
 	
 	private int width, height;
@@ -74,26 +111,150 @@ public class Map {
 	public Map (String name, World world) {
 		this.name = name;
 		this.world = world;
+		this.emptySince = System.currentTimeMillis();
 		chunkRows = new TreeMap<Integer, ChunkRow>();
 		npcDialogManager = new NpcDialogManager(this);
 		formManager = new FormManager(this);
 		changes = new MapSnapshot(name, displayName);
 		entityManager = new EntityManager();
+		entitySpatialHash = new EntitySpatialHash();
+		hitQuery = new EntityHitQuery(entitySpatialHash);
+		if (ArchipeloServer.getServer().getConfig().entityStateStore)
+			entityStateStore = new EntityStateStore();
+		movedEntities = new LinkedHashSet<LivingEntity>();
+		stepOnCandidates = new ArrayList<Entity>();
+		stepOnChecks = new ArrayList<LivingEntity>();
+		awakeChunks = new LongMap<Boolean>();
+		scheduler = new TickScheduler();
+		pathfinder = new Pathfinder(this);
+		proximityTracker = new ProximityTracker(entitySpatialHash);
+		nearbyEntitiesBuffer = new ThreadLocal<ArrayList<Entity>>() {
+			
+			@Override
+			protected ArrayList<Entity> initialValue() {
+				return new ArrayList<Entity>();
+			}
+			
+		};
+		
+		//Clean up old position logs of all entities once a second instead of every tick
+		scheduler.runRepeating(new Runnable() {
+			
+			@Override
+			public void run() {
+				for (Entity entity : entityManager.getEntities())
+					entity.removeOldLogEntries();
+			}
+			
+		}, 1, 1);
+		
+		scheduler.runRepeating(new Runnable() {
+			
+			@Override
+			public void run() {
+				pathfinder.removeUnusedFields();
+			}
+			
+		}, Pathfinder.UNUSED_FIELD_LIFETIME, Pathfinder.UNUSED_FIELD_LIFETIME);
 	}
 	
 	public void tick20 (float deltaTime) {
-		for (Entity entity : entityManager.duplicateEntityList()) {
-			entity.tick20(deltaTime);
+		boolean dormancyEnabled = ArchipeloServer.getServer().getConfig().entityDormancy;
+		if (dormancyEnabled)
+			updateAwakeChunks();
+		
+		TickProfiler profiler = ArchipeloServer.getServer().getTickProfiler();
+		for (Entity entity : entityManager.getEntities()) {
+			long startTime = profiler.start();
+			entity.mapTick20(deltaTime, !dormancyEnabled || isInAwakeChunk(entity));
+			profiler.record(entity, startTime);
 		}
 	}
 	
 	public void tick60 (float deltaTime) {
-		for (Entity entity : entityManager.duplicateEntityList()) {
-			entity.tick60(deltaTime);
+		scheduler.tick();
+		
+		TickProfiler profiler = ArchipeloServer.getServer().getTickProfiler();
+		for (Entity entity : entityManager.getEntities()) {
+			long startTime = profiler.start();
+			entity.mapTick60(deltaTime);
+			profiler.record(entity, startTime);
 		}
+		updateEntitiesSteppedOn();
+	}
+	
+	/**
+	 * Finds all chunks close enough to a player that entities in them shouldn't be dormant.
+	 */
+	private void updateAwakeChunks () {
+		awakeChunks.clear();
+		for (Player player : getPlayers()) {
+			int chunkX = player.getLocation().getChunkX();
+			int chunkY = player.getLocation().getChunkY();
+			for (int r = -AWAKE_CHUNK_RADIUS; r <= AWAKE_CHUNK_RADIUS; r++) {
+				for (int c = -AWAKE_CHUNK_RADIUS; c <= AWAKE_CHUNK_RADIUS; c++)
+					awakeChunks.put(getChunkKey(chunkX + c, chunkY + r), Boolean.TRUE);
+			}
+		}
+	}
+	
+	private boolean isInAwakeChunk (Entity entity) {
+		return awakeChunks.containsKey(getChunkKey(entity.getLocation().getChunkX(), entity.getLocation().getChunkY()));
+	}
+	
+	private static long getChunkKey (int chunkX, int chunkY) {
+		return ((long) chunkX << 32) | (chunkY & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Call when a living entity moves. Which entities it steps on will be updated at the end of the tick.
+	 * @param entity
+	 */
+	public void queueStepOnCheck (LivingEntity entity) {
+		synchronized (movedEntities) {
+			movedEntities.add(entity);
+		}
+	}
+	
+	/**
+	 * Updates what every entity that moved this tick is stepping on, using only the entities near it.
+	 */
+	private void updateEntitiesSteppedOn () {
+		synchronized (movedEntities) {
+			if (movedEntities.isEmpty())
+				return;
+			
+			for (LivingEntity entity : movedEntities)
+				stepOnChecks.add(entity);
+			movedEntities.clear();
+		}
+		
+		for (int i = 0; i < stepOnChecks.size(); i++) {
+			LivingEntity entity = stepOnChecks.get(i);
+			if (entity.getMap() != this || !isEntityOnMap(entity))
+				continue;//Entity left the map since it moved
+			
+			EntityType type = entity.getEntityType();
+			entitySpatialHash.query(entity.getLocation().getX() + type.getCollisionBoundsX(), entity.getLocation().getY() + type.getCollisionBoundsY(), type.getCollisionBoundsWidth(), type.getCollisionBoundsHeight(), stepOnCandidates);
+			entity.updateEntitiesSteppedOn(stepOnCandidates);
+		}
+		stepOnChecks.clear();
+	}
+	
+	/**
+	 * Returns whether this entity is currently on this map.
+	 * @param entity
+	 * @return
+	 */
+	public boolean isEntityOnMap (Entity entity) {
+		return entityManager.contains(entity);
 	}
 
-	//If you wish to add this map, load it from its island, not here.
+	/**
+	 * Reads the map's settings. Returns false if the map's folder or settings are missing or invalid.
+	 * If you wish to add this map, load it from the world, not here.
+	 * @return
+	 */
 	public boolean load () {
 		ArchipeloServer.getServer().getLogger().info("Loading map: " + getName() + ".");
 		displayName = makeDisplayName();
@@ -102,6 +263,7 @@ public class Map {
 			this.loadFromFile();
 		} catch (InvalidMapFolderException e) {
 			ArchipeloServer.getServer().getLogger().error("Could not load map " + this.name + ". Reason: " + e.getMessage());
+			return false;
 		}
 		loaded = true;
 		return true;
@@ -110,32 +272,88 @@ public class Map {
 	//If you wish to remove this map, unload it from its island, not here.
 	public void unload () {
 		ArchipeloServer.getServer().getLogger().info("Unloading map: " + getName() + ".");
-		try {
-			if (canSave)
-				this.saveToFile();
-		} catch (IOException e) {
-			ArchipeloServer.getServer().getLogger().error("Could not save map " + this.name + ". Reason: " + e.getMessage());
-		}
+		if (canSave)
+			this.saveToFile();
+		
+		//Already saved, so remove them to free their handles and the shard's state about them
+		for (Entity entity : entityManager.getEntities())
+			entity.remove();
 		formManager.dispose();
+		scheduler.clear();
+		pathfinder.clear();
+		proximityTracker.clear();
 		loaded = false;
+		unloaded.countDown();
 	}
 	
-	private boolean getTileCollisionAtPos(int x, int y) {
-		int chunkX = (int) Math.floor((float) x / (ChunkData.SIZE * TileData.COLLISION_MAP_SCALE));
-		int chunkY = (int) Math.floor((float) y / (ChunkData.SIZE * TileData.COLLISION_MAP_SCALE));
-		
-		int xWithinChunk = x % (ChunkData.SIZE * TileData.COLLISION_MAP_SCALE);
-		if (x < 0)
-			xWithinChunk = (ChunkData.SIZE * TileData.COLLISION_MAP_SCALE) - (Math.abs(x + 1) % (ChunkData.SIZE * TileData.COLLISION_MAP_SCALE)) - 1;
+	/**
+	 * Waits for a map that is being unloaded on another thread to queue its saves, so a fresh copy reads its latest state.
+	 * Gives up after a few seconds in case the unload failed.
+	 */
+	public void awaitUnloaded () {
+		try {
+			if (!unloaded.await(5, TimeUnit.SECONDS))
+				ArchipeloServer.getServer().getLogger().caution("Map " + name + " took too long to unload, loading it again anyway.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Checks if any collision cell from startCol to endCol and startRow to endRow (all inclusive) collides.
+	 * Coordinates are in collision cells. Each chunk is only looked up once and its rows are tested with bit masks.
+	 * Cells in chunks that aren't loaded count as collisions.
+	 * @param startCol
+	 * @param startRow
+	 * @param endCol
+	 * @param endRow
+	 * @return
+	 */
+	private boolean collidesWithTileCells (int startCol, int startRow, int endCol, int endRow) {
+		if (endCol < startCol || endRow < startRow)
+			return false;
 		
-		int yWithinChunk = y % (ChunkData.SIZE * TileData.COLLISION_MAP_SCALE);
-		if (y < 0)
-			yWithinChunk = (ChunkData.SIZE * TileData.COLLISION_MAP_SCALE) - (Math.abs(y + 1) % (ChunkData.SIZE * TileData.COLLISION_MAP_SCALE)) - 1;
+		int size = Chunk.COLLISION_MAP_SIZE;
+		int startChunkX = Math.floorDiv(startCol, size);
+		int endChunkX = Math.floorDiv(endCol, size);
+		int startChunkY = Math.floorDiv(startRow, size);
+		int endChunkY = Math.floorDiv(endRow, size);
 		
-		Chunk chunk = getChunk(chunkX, chunkY);
-		if (chunk != null)
-			return chunk.getCollisionMap()[yWithinChunk][xWithinChunk];
-		return true;
+		for (int chunkY = startChunkY; chunkY <= endChunkY; chunkY++) {
+			ChunkRow chunkRow = chunkRows.get(chunkY);
+			int firstRow = Math.max(startRow - chunkY * size, 0);
+			int lastRow = Math.min(endRow - chunkY * size, size - 1);
+			
+			for (int chunkX = startChunkX; chunkX <= endChunkX; chunkX++) {
+				Chunk chunk = (chunkRow != null) ? chunkRow.getChunks().get(chunkX) : null;
+				if (chunk == null)
+					return true;
+				
+				int firstCol = Math.max(startCol - chunkX * size, 0);
+				int lastCol = Math.min(endCol - chunkX * size, size - 1);
+				for (int row = firstRow; row <= lastRow; row++) {
+					if (chunk.collidesInRow(row, firstCol, lastCol))
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks if a rectangle collides with the tiles and elements of this map. Doesn't check entities.
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public boolean collidesWithTiles (float x, float y, float width, float height) {
+		int startRow = (int) (y / COLLISION_BOX_SIZE);
+		int endRow = (int) Math.ceil((height + y) / COLLISION_BOX_SIZE) - 2;
+		int startCol = (int) (x / COLLISION_BOX_SIZE) - 1;
+		int endCol = (int) Math.ceil((width + x) / COLLISION_BOX_SIZE) - 1;
+		return collidesWithTileCells(startCol, startRow, endCol, endRow);
 	}
 	
 	public boolean collidesWithMap (CollisionRect[] rects, Entity testEntity) {
@@ -147,24 +365,20 @@ public class Map {
 	}
 	
 	public boolean collidesWithMap (CollisionRect rect, Entity testEntity) {
-		int collisionBoxSize = (int) ArchipeloServer.TILE_SIZE / TileData.COLLISION_MAP_SCALE;
-		
 		//See if rect collides with map
 		/*if (rect.xWithOffset() < 0 || rect.yWithOffset() < 0 || rect.xWithOffset() + rect.width > getPixelWidth() || rect.yWithOffset() + rect.height > getPixelHeight())
 			return true;*/
 		
 		//See if it collides with tiles and elements
-		for (int row = (int) (rect.yWithOffset() / collisionBoxSize); row < Math.ceil((rect.height + rect.yWithOffset()) / collisionBoxSize) - 1; row++) {
-			for (int col = (int) (rect.xWithOffset() / collisionBoxSize) - 1; col < Math.ceil((rect.width + rect.xWithOffset()) / collisionBoxSize); col++) {
-				if (getTileCollisionAtPos(col, row))
-						return true;
-			}
-		}
+		if (collidesWithTiles(rect.xWithOffset(), rect.yWithOffset(), rect.width, rect.height))
+			return true;
 
 		boolean isPlayer = testEntity instanceof Player;
 		
-		//Check for collisions with entities
-		for (Entity entity : getEntities()) {
+		//Check for collisions with entities close enough to touch the rect
+		ArrayList<Entity> nearbyEntities = entitySpatialHash.query(rect.xWithOffset(), rect.yWithOffset(), rect.width, rect.height, nearbyEntitiesBuffer.get());
+		for (int i = 0; i < nearbyEntities.size(); i++) {
+			Entity entity = nearbyEntities.get(i);
 			if (entity == testEntity)
 				continue;
 			
@@ -203,6 +417,7 @@ public class Map {
 	
 	public void setDisplayName (String displayName) {
 		this.displayName = displayName;
+		this.settingsChanged = true;
 		changes.putString("display-name", displayName);
 	}
 	
@@ -210,6 +425,38 @@ public class Map {
 		return displayName;
 	}
 	
+	/**
+	 * Scheduler for delayed and repeating tasks on this map. Tasks run on the map's thread at the start of its tick60.
+	 * @return
+	 */
+	public TickScheduler getScheduler () {
+		return scheduler;
+	}
+	
+	/**
+	 * Lag compensated attack hit detection for entities on this map.
+	 * @return
+	 */
+	public EntityHitQuery getHitQuery () {
+		return hitQuery;
+	}
+	
+	/**
+	 * Paths around tiles for entities chasing a target on this map.
+	 * @return
+	 */
+	public Pathfinder getPathfinder () {
+		return pathfinder;
+	}
+	
+	/**
+	 * Lets entities know when other entities come close to them on this map.
+	 * @return
+	 */
+	public ProximityTracker getProximityTracker () {
+		return proximityTracker;
+	}
+	
 	public World getWorld () {
 		return world;
 	}
@@ -227,15 +474,18 @@ public class Map {
 	}
 	
 	/**
-	 * Safe way to loop through entities. Prevents ConcurrentModification Exceptions.
-	 * Exceptions
+	 * Safe way to loop through entities, even while they are added or removed. The array is shared, so don't modify it.
 	 * @return
 	 */
-	public Collection<Entity> getEntities () {
-		return entityManager.duplicateEntityList();
+	public Entity[] getEntities () {
+		return entityManager.getEntities();
 	}
 	
-	public Collection<Player> getPlayers () {
+	/**
+	 * Safe way to loop through players, even while they are added or removed. The array is shared, so don't modify it.
+	 * @return
+	 */
+	public Player[] getPlayers () {
 		return entityManager.getPlayers();
 	}
 	
@@ -244,6 +494,7 @@ public class Map {
 	}
 	
 	public void addEntity (Entity entity) {
+		entity.assignHandle();
 		EntityAddPacket addPacket = new EntityAddPacket(entity);
 		for (Player player : getPlayers()) {
 			player.sendPacket(addPacket);
@@ -252,7 +503,11 @@ public class Map {
 			Player player = (Player) entity;
 			player.setNewOnMap(true);
 		}
+		addToStateStore(entity);
 		entityManager.addEntity(entity);
+		entitySpatialHash.add(entity);
+		proximityTracker.update(entity);
+		markChunkDirty(entity);
 	}
 	
 	/**
@@ -261,16 +516,20 @@ public class Map {
 	 */
 	public void removeEntityUnsafe (Entity entity) {
 		entityManager.removeEntity(entity);
+		entitySpatialHash.remove(entity);
+		proximityTracker.remove(entity);
+		markChunkDirty(entity);
+		removeFromStateStore(entity);
 		
 		EntityRemovePacket removePacket = new EntityRemovePacket(entity);
 		for (Player player : getPlayers()) {
 			player.sendPacket(removePacket);
 		}
 		
-		//Check if there are any players left. If not, unload the map.
+		//Check if there are any players left. If not, start the keep-alive timer. The world unloads it once it runs out.
 		if (entity.isPlayer()) {
 			if (entityManager.noPlayersInList()) {
-				world.unloadMap(this);
+				keepAlive();
 			}
 		}
 	}
@@ -279,6 +538,79 @@ public class Map {
 		return loaded;
 	}
 	
+	public boolean hasPlayers () {
+		return !entityManager.noPlayersInList();
+	}
+	
+	/**
+	 * Restarts the keep-alive timer of this map. Call before adding an entity from another thread.
+	 * Returns false if the map is already being unloaded, in which case it should not be used anymore.
+	 * @return
+	 */
+	public synchronized boolean keepAlive () {
+		if (unloading)
+			return false;
+		
+		emptySince = System.currentTimeMillis();
+		return true;
+	}
+	
+	/**
+	 * Call before sending an entity to this map from another thread. The map won't be unloaded, even when memory is low,
+	 * until endArrival() is called once the entity was added.
+	 * Returns false if the map is already being unloaded, in which case it should not be used anymore.
+	 * @return
+	 */
+	public synchronized boolean startArrival () {
+		if (!keepAlive())
+			return false;
+		
+		pendingArrivals++;
+		return true;
+	}
+	
+	/**
+	 * Call on this map's thread after the entity from startArrival() was added, or wasn't going to be.
+	 */
+	public synchronized void endArrival () {
+		pendingArrivals--;
+		emptySince = System.currentTimeMillis();
+	}
+	
+	public synchronized boolean hasPendingArrivals () {
+		return pendingArrivals > 0;
+	}
+	
+	/**
+	 * Marks this map as unloading if it is empty, nothing is on its way to it and its keep-alive ran out.
+	 * Once this returns true, keepAlive() will fail and the map must be unloaded.
+	 * @param keepAliveMillis
+	 * @param ignoreKeepAlive Unload even if the keep-alive hasn't run out yet. Used when memory is low.
+	 * @return
+	 */
+	public synchronized boolean startUnloading (long keepAliveMillis, boolean ignoreKeepAlive) {
+		if (unloading || pinned || pendingArrivals > 0 || hasPlayers())
+			return false;
+		
+		if (!ignoreKeepAlive && System.currentTimeMillis() - emptySince < keepAliveMillis)
+			return false;
+		
+		unloading = true;
+		return true;
+	}
+	
+	public synchronized long getEmptySince () {
+		return emptySince;
+	}
+	
+	public boolean isPinned () {
+		return pinned;
+	}
+	
+	public void setPinned (boolean pinned) {
+		this.pinned = pinned;
+	}
+	
 	public boolean isThereNewPlayerOnMap () {
 		for (Player player : getPlayers()) {
 			if (player.isNewOnMap())
@@ -315,9 +647,7 @@ public class Map {
 	}
 	
 	public Collection<Player> duplicatePlayerList () {
-		ArrayList<Player> players = new ArrayList<Player>();
-		players.addAll(getPlayers());
-		return players;
+		return new ArrayList<Player>(Arrays.asList(getPlayers()));
 	}
 	
 	/**
@@ -350,6 +680,7 @@ public class Map {
 
 	public void setNaturalLighting(boolean naturalLighting) {
 		this.naturalLighting = naturalLighting;
+		this.settingsChanged = true;
 	}
 
 	public String getMusic() {
@@ -358,6 +689,7 @@ public class Map {
 
 	public void setMusic(String music) {
 		this.music = music;
+		this.settingsChanged = true;
 	}
 	
 	public int getWidth () {
@@ -396,51 +728,121 @@ public class Map {
 		
 		Chunk chunk = row.getChunks().get(x);
 		if (chunk != null) //Loaded so just return it
-			return chunk;	
-		else {//Not loaded so load it
-			File chunkFile = new File("maps/" + this.name + "/chunks/" + y + "/" + x + "/data.json");
-			File entityFile = new File("maps/" + this.name + "/chunks/" + y + "/" + x + "/entities.json");
-			if (!chunkFile.exists())
-				return null;
-			else if (!entityFile.exists())
-				return null;
-			else {
-				FileReader reader = null;
-				FileReader entityReader = null;
-				try {
-					reader = new FileReader(chunkFile);
-					entityReader = new FileReader(entityFile);
-					
-					//Read entire chunk data file
-					StringBuilder data = new StringBuilder("");
-					int val = reader.read();
-					while (val != -1) {
-						data.append((char) val);
-						val = reader.read();
-					}
-					
-					EntityData entityData = json.fromJson(EntityData.class, entityReader);
-					chunk = new Chunk(data.toString(), this);
-					row.getChunks().put(x, chunk);
-					
-					//Load entities
-					for (EntitySnapshot snapshot : entityData.entities)
-						entityManager.addEntity(EntityType.createEntityBySnapshot(snapshot, this));
-					
-					return chunk;
-				} catch (Exception e) {
-					ArchipeloServer.getServer().getLogger().caution("Could not load chunk " + x + "," + y + " of map " + this.name + ". Reason: " + e.getMessage());
-					return null;
-				} finally {
-					try {
-						reader.close();
-					} catch (Exception e) {}
+			return chunk;
+		
+		TickProfiler profiler = ArchipeloServer.getServer().getTickProfiler();
+		long startTime = profiler.start();
+		chunk = readChunk(row, x, y);
+		profiler.record(TickProfiler.Phase.CHUNK_LOAD, startTime);
+		return chunk;
+	}
+	
+	/**
+	 * Reads a chunk that isn't loaded yet and adds it to its row.
+	 * @param row
+	 * @param x
+	 * @param y
+	 * @return Null if the chunk could not be loaded
+	 */
+	private Chunk readChunk (ChunkRow row, int x, int y) {
+		Chunk chunk;
+		//If this chunk is still waiting to be written to disk, load it from the queued image instead
+		SaveImage pendingImage = ArchipeloServer.getServer().getPersistenceManager().getPendingImage(ChunkSaveImage.getKey(name, x, y));
+		if (pendingImage != null) {
+			ChunkSaveImage chunkImage = (ChunkSaveImage) pendingImage;
+			chunk = new Chunk(chunkImage.getChunkData(), this);
+			row.getChunks().put(x, chunk);
+			
+			for (EntitySnapshot snapshot : chunkImage.getEntityData().entities)
+				addLoadedEntity(EntityType.createEntityBySnapshot(snapshot, this));
+			return chunk;
+		}
+		
+		File chunkFile = new File("maps/" + this.name + "/chunks/" + y + "/" + x + "/data.json");
+		File entityFile = new File("maps/" + this.name + "/chunks/" + y + "/" + x + "/entities.json");
+		if (!chunkFile.exists())
+			return null;
+		else if (!entityFile.exists())
+			return null;
+		else {
+			FileReader reader = null;
+			FileReader entityReader = null;
+			try {
+				reader = new FileReader(chunkFile);
+				entityReader = new FileReader(entityFile);
+				
+				//Read entire chunk data file
+				StringBuilder data = new StringBuilder("");
+				int val = reader.read();
+				while (val != -1) {
+					data.append((char) val);
+					val = reader.read();
 				}
 				
+				EntityData entityData = json.fromJson(EntityData.class, entityReader);
+				chunk = new Chunk(data.toString(), this);
+				row.getChunks().put(x, chunk);
+				
+				//Load entities
+				for (EntitySnapshot snapshot : entityData.entities)
+					addLoadedEntity(EntityType.createEntityBySnapshot(snapshot, this));
+				
+				return chunk;
+			} catch (Exception e) {
+				ArchipeloServer.getServer().getLogger().caution("Could not load chunk " + x + "," + y + " of map " + this.name + ". Reason: " + e.getMessage());
+				return null;
+			} finally {
+				try {
+					reader.close();
+				} catch (Exception e) {}
 			}
+			
 		}
 	}
 	
+	/**
+	 * Adds an entity that was loaded with a chunk. Unlike addEntity, players aren't told since they get it with the chunk.
+	 * @param entity
+	 */
+	private void addLoadedEntity (Entity entity) {
+		entity.assignHandle();
+		addToStateStore(entity);
+		entityManager.addEntity(entity);
+		entitySpatialHash.add(entity);
+		proximityTracker.update(entity);
+	}
+	
+	/**
+	 * Moves the position and direction of an entity into the state store, if this map has one.
+	 * @param entity
+	 */
+	private void addToStateStore (Entity entity) {
+		Location location = entity.getLocation();
+		if (entityStateStore == null || location.getSlot() != EntityStateStore.NO_SLOT)
+			return;
+		
+		location.attach(entityStateStore, entityStateStore.allocate(entity, location.getX(), location.getY(), location.getDirectionInt()));
+	}
+	
+	private void removeFromStateStore (Entity entity) {
+		Location location = entity.getLocation();
+		int slot = location.getSlot();
+		if (entityStateStore == null || slot == EntityStateStore.NO_SLOT)
+			return;
+		
+		location.detach();
+		entityStateStore.free(slot);
+	}
+	
+	/**
+	 * Call whenever an entity on this map changes position, so collision queries can find it at its new position.
+	 * @param entity
+	 */
+	public void updateEntityPosition (Entity entity) {
+		entitySpatialHash.update(entity);
+		proximityTracker.update(entity);
+	}
+	
 	/**
 	 * Used to unload chunks that aren't loaded by players
 	 * @param validChunks
@@ -467,38 +869,51 @@ public class Map {
 	 * Call this before removing the chunk from its row.
 	 */
 	protected void unloadChunk(Chunk chunk) {
-		String data = chunk.getGeneratedData();
+		ArrayList<Entity> entitiesInChunk = getEntitiesInChunk(chunk);
+		if (canSave && chunk.isDirty())
+			saveChunk(chunk, entitiesInChunk);
+		
+		for (Entity entity : entitiesInChunk)
+			entity.remove();
+	}
+	
+	/**
+	 * Queues an image of this chunk and its entities to be written to disk.
+	 * Players are not saved with chunks, they are saved to the database.
+	 * @param chunk
+	 * @param entitiesInChunk
+	 */
+	private void saveChunk(Chunk chunk, Collection<Entity> entitiesInChunk) {
 		EntityData entityData = new EntityData();
-		for (Entity entity : getEntitiesInChunk(chunk)) {
-			if (canSave)
+		for (Entity entity : entitiesInChunk) {
+			if (!entity.isPlayer())
 				entityData.entities.add(entity.getSaveSnapshot());
-			entity.remove();
 		}
 		
-		if (canSave) {
-			File chunkFile = new File("maps/" + name + "/" + chunk.getY() + "/" + chunk.getX() + "/data.json");
-			File entityFile = new File("maps/" + name + "/" + chunk.getY() + "/" + chunk.getX() + "/entities.json");
-			FileWriter writer = null;
-			FileWriter entityWriter = null;
-			try {
-				writer = new FileWriter(chunkFile);
-				entityWriter = new FileWriter(entityFile);
-				writer.write(data);
-				json.toJson(entityData, entityWriter);
-			} catch (IOException e) {
-				ArchipeloServer.getServer().getLogger().caution("Could not save map chunk of: " + name + ":" + chunk.getX() + ":" + chunk.getY());
-			} finally {
-				try {
-					writer.close();
-					entityWriter.close();
-				} catch (Exception e) {}
-			}
-		}
+		ArchipeloServer.getServer().getPersistenceManager().save(new ChunkSaveImage(name, chunk.getX(), chunk.getY(), chunk.getGeneratedData(), entityData));
+		chunk.clearDirty();
+	}
+	
+	/**
+	 * Flags the chunk an entity is standing in as changed, so that it will be saved.
+	 * Does nothing for players, since they aren't saved with chunks.
+	 * @param entity
+	 */
+	public void markChunkDirty(Entity entity) {
+		if (!canSave || entity.isPlayer())
+			return;
+		
+		Chunk chunk = getChunk(entity.getLocation().getChunkX(), entity.getLocation().getChunkY());
+		if (chunk != null)
+			chunk.markDirty();
 	}
 	
 	protected ArrayList<Entity> getEntitiesInChunk(Chunk chunk) {
 		ArrayList<Entity> entities = new ArrayList<Entity>();
-		for (Entity entity : entityManager.duplicateEntityList()) {
+		if (entityStateStore != null)
+			return entityStateStore.getEntitiesInChunk(chunk.getX(), chunk.getY(), entities);
+		
+		for (Entity entity : entityManager.getEntities()) {
 			if (entity.getLocation().getChunkX() == chunk.getX() && entity.getLocation().getChunkY() == chunk.getY())
 				entities.add(entity);
 		}
@@ -510,22 +925,29 @@ public class Map {
 		if (!folder.exists())
 			throw new InvalidMapFolderException("No folder selected");
 		
-		File settingsFile = new File(folder, "settings.json");
-		if (!settingsFile.exists())
-			throw new InvalidMapFolderException("Settings file not found. There must be a settings.json file in the map's root directory.");
-			
 		MapData mapData;
-		FileReader reader = null;
-		try {
-			 reader = new FileReader(settingsFile);
-			mapData = (MapData) json.fromJson(MapData.class, reader);
-		} catch (Exception e) {
-			throw new InvalidMapFolderException("Settings file is invalid.");
-		} finally {
+		//If the settings are still waiting to be written to disk, use the queued ones instead
+		SaveImage pendingImage = ArchipeloServer.getServer().getPersistenceManager().getPendingImage(MapSettingsSaveImage.getKey(name));
+		if (pendingImage != null)
+			mapData = ((MapSettingsSaveImage) pendingImage).getData();
+		else {
+			File settingsFile = new File(folder, "settings.json");
+			if (!settingsFile.exists())
+				throw new InvalidMapFolderException("Settings file not found. There must be a settings.json file in the map's root directory.");
+			
+			FileReader reader = null;
 			try {
-				reader.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+				 reader = new FileReader(settingsFile);
+				mapData = (MapData) json.fromJson(MapData.class, reader);
+			} catch (Exception e) {
+				throw new InvalidMapFolderException("Settings file is invalid.");
+			} finally {
+				try {
+					if (reader != null)
+						reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 		}
 		
@@ -543,67 +965,40 @@ public class Map {
 		this.chunkLocations = mapData.chunks;//Not necessary, chunks are obtained on the fly and not all at once
 	}
 	
-	public void saveToFile() throws IOException {
+	/**
+	 * Queues the map to be saved. Only the settings and chunks that changed since the last save are written.
+	 */
+	public void saveToFile() {
 		if (!canSave)
 			return;
 		
-		File parentFolder = new File("maps/");
-		parentFolder.mkdirs();
-		File folder = new File(parentFolder, name + "/");
-		folder.mkdirs();
-		
-		File settingsFile = new File(folder, "settings.json");
-		settingsFile.createNewFile();
-
-		Json json = new Json();
-		PrettyPrintSettings settings = new PrettyPrintSettings();
-		settings.singleLineColumns = 30;
-		settings.wrapNumericArrays = false;
-		settings.outputType = JsonWriter.OutputType.javascript;
-		
-		FileWriter settingsWriter = new FileWriter(settingsFile);
-		MapData data = new MapData();
-		data.name = this.name;
-		data.displayName = this.displayName;
-		data.naturalLighting = this.naturalLighting;
-		data.music = this.music;
-		
-		settingsWriter.write(json.prettyPrint(data, settings));
-		settingsWriter.close();
-		
-		File entityFile = new File(folder, "entities.json");
-		entityFile.createNewFile();
-		
-		FileWriter entityWriter = new FileWriter(entityFile);
-		json.toJson(entityManager.getDataToSave(), entityWriter);
-		entityWriter.close();
-		
-		File chunkFolder = new File(folder, "chunks/");
-		chunkFolder.mkdirs();
-		deleteFolderContents(chunkFolder);//Make sure chunk folder is empty before putting things in it
+		PersistenceManager persistenceManager = ArchipeloServer.getServer().getPersistenceManager();
+		if (settingsChanged) {
+			MapData data = new MapData();
+			data.name = this.name;
+			data.displayName = this.displayName;
+			data.naturalLighting = this.naturalLighting;
+			data.music = this.music;
+			data.canSave = this.canSave;
+			data.width = this.width;
+			data.height = this.height;
+			data.minTileX = this.minTileX;
+			data.minTileY = this.minTileY;
+			data.maxTileX = this.maxTileX;
+			data.maxTileY = this.maxTileY;
+			data.chunks = this.chunkLocations;
+			persistenceManager.save(new MapSettingsSaveImage(name, data));
+			settingsChanged = false;
+		}
 		
 		for (ChunkRow row : chunkRows.values()) {
-			File rowFolder = new File(chunkFolder, row.getY() + "/");
-			rowFolder.mkdirs();
-			deleteFolderContents(rowFolder);//Make sure row folder is empty
-			
 			for (Chunk chunk : row.getChunks().values()) {
-				FileWriter chunkFileWriter = new FileWriter(new File(rowFolder, chunk.getX() + ".json"));
-				
-				chunkFileWriter.write(chunk.getGeneratedData());
-				chunkFileWriter.close();
+				if (chunk.isDirty())
+					saveChunk(chunk, getEntitiesInChunk(chunk));
 			}
 		}
 	}
 	
-	private void deleteFolderContents(File folder) {
-		for (File child : folder.listFiles()) {
-			if (child.isDirectory())
-				deleteFolderContents(child);
-			child.delete();
-		}
-	}
-	
 	public boolean doesChunkExist(int x, int y) {
 		return this.getChunk(x, y) != null;
 	}
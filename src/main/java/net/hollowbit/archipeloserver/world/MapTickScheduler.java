@@ -0,0 +1,155 @@
+package net.hollowbit.archipeloserver.world;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+import net.hollowbit.archipeloserver.tools.tick.TickWatchdog;
+
+/**
+ * Spreads loaded maps over a fixed number of shards, each with its own worker thread.
+ * All ticks and posted tasks of a map run on its shard's thread, in the order they were submitted,
+ * so a map is never ticked by two threads at once. Anything that needs to change another map
+ * should be posted to it instead of touching it directly.
+ * @author vedi0boy
+ *
+ */
+public class MapTickScheduler {
+	
+	private ExecutorService[] shards;
+	private int[] mapsPerShard;
+	private HashMap<Map, Integer> assignedShards;
+	
+	public MapTickScheduler (int numOfShards) {
+		if (numOfShards <= 0)
+			numOfShards = Runtime.getRuntime().availableProcessors();
+		
+		shards = new ExecutorService[numOfShards];
+		mapsPerShard = new int[numOfShards];
+		assignedShards = new HashMap<Map, Integer>();
+		
+		for (int i = 0; i < numOfShards; i++) {
+			final String threadName = "map-shard-" + i;
+			shards[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			
+			});
+		}
+		ArchipeloServer.getServer().getLogger().info("Ticking maps on " + numOfShards + " shards.");
+	}
+	
+	/**
+	 * Gives a map to the shard with the least maps.
+	 * @param map
+	 */
+	public synchronized void assign (Map map) {
+		if (assignedShards.containsKey(map))
+			return;
+		
+		int shard = 0;
+		for (int i = 1; i < mapsPerShard.length; i++) {
+			if (mapsPerShard[i] < mapsPerShard[shard])
+				shard = i;
+		}
+		mapsPerShard[shard]++;
+		assignedShards.put(map, shard);
+	}
+	
+	/**
+	 * Frees the map's place on its shard. Tasks already posted for it still run.
+	 * @param map
+	 */
+	public synchronized void release (Map map) {
+		Integer shard = assignedShards.remove(map);
+		if (shard != null)
+			mapsPerShard[shard]--;
+	}
+	
+	private synchronized ExecutorService getShard (Map map) {
+		Integer shard = assignedShards.get(map);
+		if (shard == null)
+			return null;
+		return shards[shard];
+	}
+	
+	/**
+	 * Queues a task to run on the map's shard thread, after whatever is already queued for it.
+	 * If the map has no shard (it isn't loaded), the task is run right away on the calling thread.
+	 * @param map
+	 * @param task
+	 */
+	public Future<?> post (final Map map, final Runnable task) {
+		ExecutorService shard = getShard(map);
+		if (shard == null) {
+			runSafely(map, task);
+			return null;
+		}
+		
+		return shard.submit(new Runnable() {
+			
+			@Override
+			public void run() {
+				//Let the watchdog know what this shard is doing
+				TickWatchdog watchdog = ArchipeloServer.getServer().getTickWatchdog();
+				watchdog.beat("task", map.getName());
+				runSafely(map, task);
+				watchdog.idle();
+			}
+		
+		});
+	}
+	
+	private void runSafely (Map map, Runnable task) {
+		try {
+			task.run();
+		} catch (Exception e) {
+			ArchipeloServer.getServer().getLogger().error("Error while running task on map " + map.getName() + ". Reason: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Waits for tasks to finish. Ignores null futures since those tasks already ran.
+	 * @param futures
+	 */
+	public void waitFor (Collection<Future<?>> futures) {
+		for (Future<?> future : futures) {
+			if (future == null)
+				continue;
+			
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {}//Errors are already logged by the task itself
+		}
+	}
+	
+	/**
+	 * Stops all shard threads after they finish what is already queued.
+	 */
+	public void stop () {
+		for (ExecutorService shard : shards)
+			shard.shutdown();
+		
+		try {
+			for (ExecutorService shard : shards)
+				shard.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {}
+	}
+
+}
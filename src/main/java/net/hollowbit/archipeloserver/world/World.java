@@ -1,15 +1,21 @@
 package net.hollowbit.archipeloserver.world;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import com.badlogic.gdx.graphics.Color;
 
 import net.hollowbit.archipeloserver.ArchipeloServer;
+import net.hollowbit.archipeloserver.entity.EntityHandles;
 import net.hollowbit.archipeloserver.entity.living.Player;
 import net.hollowbit.archipeloserver.entity.living.player.PlayerData;
 import net.hollowbit.archipeloserver.entity.living.player.PlayerInventory;
@@ -24,6 +30,7 @@ import net.hollowbit.archipeloserver.network.packets.FlagsAddPacket;
 import net.hollowbit.archipeloserver.network.packets.PlayerDeletePacket;
 import net.hollowbit.archipeloserver.network.packets.PlayerListPacket;
 import net.hollowbit.archipeloserver.network.packets.PlayerPickPacket;
+import net.hollowbit.archipeloserver.network.packets.WorldSnapshotPacket;
 import net.hollowbit.archipeloserver.tools.Configuration;
 import net.hollowbit.archipeloserver.tools.SnapshotGenerator;
 import net.hollowbit.archipeloserver.tools.database.QueryTaskResponseHandler.PlayerCountQueryTaskResponseHandler;
@@ -32,44 +39,89 @@ import net.hollowbit.archipeloserver.tools.database.QueryTaskResponseHandler.Pla
 import net.hollowbit.archipeloserver.tools.event.EventHandler;
 import net.hollowbit.archipeloserver.tools.event.EventType;
 import net.hollowbit.archipeloserver.tools.event.events.readonly.PlayerLeaveEvent;
-import net.hollowbit.archipeloserver.world.map.Chunk;
+import net.hollowbit.archipeloserver.tools.profiler.TickProfiler;
+import net.hollowbit.archipeloserver.tools.tick.TickWatchdog;
+import net.hollowbit.archipeloshared.ChunkData;
 import net.hollowbit.archipeloshared.StringValidator;
 
 public class World implements PacketHandler, EventHandler {
 	
 	public static final int TICKS_PER_DAY = 36000;
+	public static final long MEMORY_EVICT_INTERVAL = 5000;//Milliseconds between maps unloaded early because of low memory
 	
 	private int time;
-	private ArrayList<Map> loadedMaps;
-	private HashMap<Player, HashSet<Chunk>> playerLoadedChunks;
+	private ConcurrentHashMap<String, Map> loadedMaps;//Keyed by lower-cased map name
+	private ConcurrentHashMap<String, Object> mapLoadLocks;//Keyed by lower-cased map name
+	private ConcurrentHashMap<String, Player> onlinePlayersByName;//Keyed by lower-cased player name
+	private ConcurrentHashMap<String, Player> onlinePlayersByAddress;
 	private SnapshotGenerator snapshotGenerator;
+	private MapTickScheduler tickScheduler;
+	private EntityHandles entityHandles;
+	private ArrayList<MemoryPoolMXBean> heapPools;
+	private long lastMemoryEvictTime = 0;
 	
 	public World () {
 		time = 0;
-		loadedMaps = new ArrayList<Map>();
+		loadedMaps = new ConcurrentHashMap<String, Map>();
+		mapLoadLocks = new ConcurrentHashMap<String, Object>();
+		onlinePlayersByName = new ConcurrentHashMap<String, Player>();
+		onlinePlayersByAddress = new ConcurrentHashMap<String, Player>();
+		entityHandles = new EntityHandles();
+		heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				heapPools.add(pool);
+		}
 		this.snapshotGenerator = new SnapshotGenerator();
+		this.tickScheduler = new MapTickScheduler(ArchipeloServer.getServer().getConfig().mapShards);
 		ArchipeloServer.getServer().getNetworkManager().addPacketHandler(this);
-		
-		playerLoadedChunks = new HashMap<Player, HashSet<Chunk>>();
 		this.addToEventManager(EventType.PlayerLeave);
 	}
 	
 	public boolean isMapLoaded (String mapName) {
-		for (Map map : duplicateMapList()) {
-			if (map.getName().equalsIgnoreCase(mapName))
-				return true;
-		}
-		return false;
+		return loadedMaps.containsKey(mapName.toLowerCase());
 	}
 	
-	public boolean loadMap (String mapName) {
+	/**
+	 * Loads a map and only registers it once it is fully loaded, so nothing can be sent to a half loaded map.
+	 * Call with the map's load lock held. Returns null if the map could not be loaded.
+	 * @param mapName
+	 * @return
+	 */
+	private Map loadMap (String mapName) {
 		Map map = new Map(mapName, this);
+		if (!map.load())
+			return null;
+		
 		addMap(map);
-		return map.load();
+		return map;
+	}
+	
+	/**
+	 * Lock held while loading a map, so two threads never load their own copy of the same map.
+	 * @param mapName
+	 * @return
+	 */
+	private Object getMapLoadLock (String mapName) {
+		String key = mapName.toLowerCase();
+		Object lock = mapLoadLocks.get(key);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = mapLoadLocks.putIfAbsent(key, newLock);
+			if (lock == null)
+				lock = newLock;
+		}
+		return lock;
 	}
 	
+	/**
+	 * Unloads a map. Should be run on the map's own thread, see post().
+	 * @param map
+	 * @return
+	 */
 	public boolean unloadMap (Map map) {
-		if (isMapLoaded(map.getName())) {
+		if (map.isLoaded()) {
+			//Stay findable until the saves are queued, so a fresh copy waits for them in getMapForArrival() instead of reading old files
 			map.unload();
 			removeMap(map);
 			return true;
@@ -79,130 +131,313 @@ public class World implements PacketHandler, EventHandler {
 	}
 	
 	public Map getMap (String mapName) {
+		return loadedMaps.get(mapName.toLowerCase());
+	}
+	
+	/**
+	 * Gets a map that an entity is about to be added to, loading it first if needed.
+	 * The map won't be unloaded until Map.endArrival() is called on its thread, so call it once the entity was added.
+	 * Returns null if the map could not be loaded.
+	 * @param mapName
+	 * @return
+	 */
+	public Map getMapForArrival (String mapName) {
+		Map map = getMap(mapName);
+		if (map != null && map.startArrival())
+			return map;
+		
+		//Either not loaded or currently unloading, so load a fresh copy
+		synchronized (getMapLoadLock(mapName)) {
+			map = getMap(mapName);
+			if (map != null) {
+				if (map.startArrival())
+					return map;//Another thread loaded it in the meantime
+				
+				//The old copy must queue its saves before the fresh copy reads them back
+				map.awaitUnloaded();
+			}
+			
+			map = loadMap(mapName);
+			if (map == null || !map.startArrival())
+				return null;
+			return map;
+		}
+	}
+	
+	/**
+	 * Loads the spawn map and all maps in config.prewarmMaps and pins them so they never get unloaded for being empty.
+	 * Also loads the chunks around the spawn point so the first player to join doesn't have to wait for them.
+	 */
+	public void prewarmMaps () {
+		Configuration config = ArchipeloServer.getServer().getConfig();
+		ArrayList<String> mapNames = new ArrayList<String>();
+		mapNames.add(config.spawnMap);
+		for (String mapName : config.prewarmMaps.split(",")) {
+			mapName = mapName.trim();
+			if (!mapName.isEmpty() && !mapName.equalsIgnoreCase(config.spawnMap))
+				mapNames.add(mapName);
+		}
+		
+		for (String mapName : mapNames) {
+			Map map = getMapForArrival(mapName);
+			if (map == null) {
+				ArchipeloServer.getServer().getLogger().caution("Could not pre-warm map " + mapName + ".");
+				continue;
+			}
+			map.setPinned(true);
+			map.endArrival();
+		}
+		
+		Map spawnMap = getMap(config.spawnMap);
+		if (spawnMap != null) {
+			int spawnChunkX = (int) Math.floor(config.spawnX / ArchipeloServer.TILE_SIZE / ChunkData.SIZE);
+			int spawnChunkY = (int) Math.floor(config.spawnY / ArchipeloServer.TILE_SIZE / ChunkData.SIZE);
+			for (int r = -1 * (WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2); r <= WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2; r++) {
+				for (int c = -1 * (WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2); c <= WorldSnapshotPacket.NUM_OF_CHUNKS_WIDE / 2; c++)
+					spawnMap.loadChunk(spawnChunkX + c, spawnChunkY + r);
+			}
+		}
+	}
+	
+	/**
+	 * Unloads empty maps once their keep-alive runs out. If the server is low on memory, the map that has been
+	 * empty the longest is unloaded right away, at most one every few seconds. Pinned maps are never unloaded here.
+	 */
+	private void unloadEmptyMaps () {
+		Configuration config = ArchipeloServer.getServer().getConfig();
+		final long keepAliveMillis = config.mapKeepAliveSeconds * 1000L;
+		long currentTime = System.currentTimeMillis();
+		
+		boolean lowOnMemory = currentTime - lastMemoryEvictTime >= MEMORY_EVICT_INTERVAL && getMemoryUsageAfterGC() >= config.mapEvictMemoryUsage;
+		
+		Map oldestEmptyMap = null;
 		for (Map map : duplicateMapList()) {
-			if (map.getName().equalsIgnoreCase(mapName))
-				return map;
+			if (map.isPinned() || map.hasPlayers() || map.hasPendingArrivals())
+				continue;
+			
+			if (currentTime - map.getEmptySince() >= keepAliveMillis)
+				postUnload(map, keepAliveMillis, false);
+			else if (lowOnMemory && (oldestEmptyMap == null || map.getEmptySince() < oldestEmptyMap.getEmptySince()))
+				oldestEmptyMap = map;
+		}
+		
+		if (oldestEmptyMap != null) {
+			lastMemoryEvictTime = currentTime;
+			postUnload(oldestEmptyMap, keepAliveMillis, true);
+		}
+	}
+	
+	/**
+	 * Fraction of the max heap that was still used right after the last garbage collections.
+	 * Unlike the current usage, this doesn't count garbage that just wasn't collected yet.
+	 * @return
+	 */
+	private float getMemoryUsageAfterGC () {
+		long used = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null)
+				used += usage.getUsed();
 		}
-		return null;
+		return used / (float) Runtime.getRuntime().maxMemory();
+	}
+	
+	private void postUnload (final Map map, final long keepAliveMillis, final boolean ignoreKeepAlive) {
+		post(map, new Runnable() {
+			
+			@Override
+			public void run() {
+				//Check again on the map's own thread since a player may have arrived in the meantime
+				if (map.startUnloading(keepAliveMillis, ignoreKeepAlive))
+					unloadMap(map);
+			}
+			
+		});
 	}
 	
 	@Override
 	public boolean onPlayerLeave(PlayerLeaveEvent event) {
-		playerLoadedChunks.remove(event.getPlayer());//Remove player from chunks map if player has left.
+		snapshotGenerator.removePlayer(event.getPlayer());//Remove player from chunks map if player has left.
+		removeOnlinePlayer(event.getPlayer());
 		return EventHandler.super.onPlayerLeave(event);
 	}
 	
-	public void tick20 (float deltaTime) {//Executed 20 times per second.
+	public void tick20 (final float deltaTime) {//Executed 20 times per second.
 		time++;
 		if (time > TICKS_PER_DAY) {//This allows for 30 minute days.
 			time = 0;
 		}
 		
-		//Tick all maps
-		for (Map map : duplicateMapList()) {
-			map.tick20(deltaTime);
-		}
+		unloadEmptyMaps();
 		
-		//Create world snapshots and send them
-		snapshotGenerator.generateAndSend(this.duplicateMapList(), time);
+		//Tick all maps on their shards, then create their world snapshots and send them. Empty maps are kept as they are until they get unloaded.
+		final int currentTime = time;
+		ArrayList<Future<?>> ticks = new ArrayList<Future<?>>();
+		for (final Map map : duplicateMapList()) {
+			ticks.add(tickScheduler.post(map, new Runnable() {
+				
+				@Override
+				public void run() {
+					if (!map.isLoaded() || !map.hasPlayers())
+						return;
+					
+					TickProfiler profiler = ArchipeloServer.getServer().getTickProfiler();
+					TickWatchdog watchdog = ArchipeloServer.getServer().getTickWatchdog();
+					watchdog.setPhase("tick20", map.getName());
+					long startTime = profiler.start();
+					map.tick20(deltaTime);
+					profiler.record(TickProfiler.Phase.MAP_TICK20, map, startTime);
+					
+					watchdog.setPhase("snapshot", map.getName());
+					startTime = profiler.start();
+					snapshotGenerator.generateAndSend(map, currentTime);
+					profiler.record(TickProfiler.Phase.SNAPSHOT, map, startTime);
+				}
+				
+			}));
+		}
+		tickScheduler.waitFor(ticks);
 	}
 	
-	public void tick60 (float deltaTime) {//Executed 60 times per second.
-		for (Map map : duplicateMapList()) {
-			map.tick60(deltaTime);
+	public void tick60 (final float deltaTime) {//Executed 60 times per second.
+		ArrayList<Future<?>> ticks = new ArrayList<Future<?>>();
+		for (final Map map : duplicateMapList()) {
+			ticks.add(tickScheduler.post(map, new Runnable() {
+				
+				@Override
+				public void run() {
+					if (!map.isLoaded() || !map.hasPlayers())
+						return;
+					
+					TickProfiler profiler = ArchipeloServer.getServer().getTickProfiler();
+					ArchipeloServer.getServer().getTickWatchdog().setPhase("tick60", map.getName());
+					long startTime = profiler.start();
+					map.tick60(deltaTime);
+					profiler.record(TickProfiler.Phase.MAP_TICK60, map, startTime);
+				}
+				
+			}));
 		}
+		tickScheduler.waitFor(ticks);
+	}
+	
+	/**
+	 * Runs a task on the thread that ticks this map, after its current tick.
+	 * Use this for anything that changes a map from outside of its own tick, like moving an entity to it.
+	 * @param map
+	 * @param task
+	 */
+	public void post (Map map, Runnable task) {
+		tickScheduler.post(map, task);
+	}
+	
+	/**
+	 * Stops the map shard threads. Call after the tick threads have stopped.
+	 */
+	public void stop () {
+		tickScheduler.stop();
+	}
+	
+	public EntityHandles getEntityHandles () {
+		return entityHandles;
 	}
 	
 	public int getTime () {
 		return time;
 	}
 	
-	private synchronized ArrayList<Map> duplicateMapList () {
-		ArrayList<Map> mapList = new ArrayList<Map>();
-		mapList.addAll(loadedMaps);
-		return mapList;
+	private ArrayList<Map> duplicateMapList () {
+		return new ArrayList<Map>(loadedMaps.values());
 	}
 	
-	private synchronized void addMap (Map map) {
-		loadedMaps.add(map);
+	private void addMap (Map map) {
+		tickScheduler.assign(map);
+		loadedMaps.put(map.getName().toLowerCase(), map);
 	}
 	
-	private synchronized void removeMap (Map map) {
-		loadedMaps.remove(map);
+	private void removeMap (Map map) {
+		loadedMaps.remove(map.getName().toLowerCase(), map);
+		tickScheduler.release(map);
+	}
+	
+	/**
+	 * Adds a player to the online player index. Players stay in the index while they move between maps.
+	 * @param player
+	 */
+	private void addOnlinePlayer (Player player) {
+		onlinePlayersByName.put(player.getName().toLowerCase(), player);
+		onlinePlayersByAddress.put(player.getAddress(), player);
+	}
+	
+	private void removeOnlinePlayer (Player player) {
+		onlinePlayersByName.remove(player.getName().toLowerCase(), player);
+		onlinePlayersByAddress.remove(player.getAddress(), player);
 	}
 	
 	public boolean isPlayerOnline (String name) {
-		for (Player player : getOnlinePlayers()) {
-			if (player.getName().equalsIgnoreCase(name))
-				return true;
-		}
-		return false;
+		return onlinePlayersByName.containsKey(name.toLowerCase());
 	}
 	
+	/**
+	 * Returns the online player with this name, regardless of which map they are on. Not case-sensitive.
+	 * @param name
+	 * @return
+	 */
 	public Player getPlayer (String name) {
-		for (Map map : loadedMaps) {
-			Player player = map.getEntityManager().getPlayer(name);
-			if (player != null)
-				return player;
-		}
-		return null;
+		return onlinePlayersByName.get(name.toLowerCase());
 	}
 	
+	/**
+	 * Read-only view of all online players. Does not copy.
+	 * @return
+	 */
 	public Collection<Player> getOnlinePlayers () {
-		ArrayList<Player> onlinePlayers = new ArrayList<Player>();
-		for (Map map : loadedMaps) {
-			onlinePlayers.addAll(map.getPlayers());
-		}
-		return onlinePlayers;
+		return Collections.unmodifiableCollection(onlinePlayersByName.values());
 	}
 	
 	public Player getPlayerByAddress (String address) {
-		HollowBitUser hollowBitUser = ArchipeloServer.getServer().getNetworkManager().getUser(address);
-		if (hollowBitUser == null)
-			return null;
-		return hollowBitUser.getPlayer();
+		return onlinePlayersByAddress.get(address);
 	}
 	
 	private void loadPlayerUsingPlayerData (String address, HollowBitUser hbu, PlayerPickPacket playerPickPacket, PlayerData pd, boolean firstTimeLogin) {
 		Configuration config = ArchipeloServer.getServer().getConfig();
-		Map map = null;
 		
-		String mapName = null;
-		
-		//If map isn't loaded already, load it
-		if (!isMapLoaded(pd.map)) {
-			if (!loadMap(pd.map)) {
-				//If map didn't load, send player to (their) spawn
-				if (!isMapLoaded(config.spawnMap)) {
-					
-					if (!loadMap(config.spawnMap)) {
-						ArchipeloServer.getServer().getLogger().error("Could not load the spawn map!");
-					}
-				}
-				mapName = config.spawnMap;
-				ArchipeloServer.getServer().getLogger().error("A player could not spawn in on the map they were on: " + mapName);
-			} else {
-				mapName = pd.map;
+		//Get the player's map, loading it if it isn't loaded already
+		Map map = getMapForArrival(pd.map);
+		if (map == null) {
+			//If map didn't load, send player to (their) spawn
+			map = getMapForArrival(config.spawnMap);
+			if (map == null) {
+				ArchipeloServer.getServer().getLogger().error("Could not load the spawn map!");
+				return;
 			}
-		} else {
-			mapName = pd.map;
+			ArchipeloServer.getServer().getLogger().error("A player could not spawn in on the map they were on: " + config.spawnMap);
 		}
 		
-		for (Map mapN : loadedMaps)
-			System.out.println(mapN.getName());
-		
-		map = getMap(mapName);
-		
 		Player player = new Player(pd.name, address, firstTimeLogin);
 		player.setNewOnMap(true);
 		player.load(map, pd, hbu);
 		if (firstTimeLogin)
 			ArchipeloServer.getServer().getDatabaseManager().createPlayer(player);
 		
+		//Index the player before the user can log out, so leaving always removes it again
+		addOnlinePlayer(player);
+		
 		//set hollowbit user player to this player
 		hbu.setPlayer(player);
 		
-		map.addEntity(player);
+		//Add the player on the map's own thread since this is called from the database thread
+		final Map spawnMap = map;
+		post(spawnMap, new Runnable() {
+			
+			@Override
+			public void run() {
+				if (!player.isRemoved())//Logged out before getting here
+					spawnMap.addEntity(player);
+				spawnMap.endArrival();
+			}
+			
+		});
 		
 		//Login was successful so tell client
 		playerPickPacket.result = PlayerPickPacket.RESULT_SUCCESSFUL;
@@ -8,11 +8,15 @@ import net.hollowbit.archipeloshared.TileData;
 
 public class Chunk {
 	
+	public static final int COLLISION_MAP_SIZE = ChunkData.SIZE * TileData.COLLISION_MAP_SCALE;//Collision cells per row and column
+	private static final int WORDS_PER_ROW = (COLLISION_MAP_SIZE + 63) / 64;
+	
 	private int x, y;
 	private String[][] tiles;
 	private String[][] elements;
-	private boolean[][] collisionMap;
+	private long[] collisionBits;//Collision map packed row by row, WORDS_PER_ROW longs per row. Bit c of a row is set if cell c collides.
 	private Map map;
+	private boolean dirty = false;
 	
 	private String chunkData;
 	
@@ -27,12 +31,13 @@ public class Chunk {
 		this.tiles = data.tiles;
 		this.elements = data.elements;
 		
-		this.collisionMap = new boolean[ChunkData.SIZE * TileData.COLLISION_MAP_SCALE][ChunkData.SIZE * TileData.COLLISION_MAP_SCALE];
+		this.collisionBits = new long[COLLISION_MAP_SIZE * WORDS_PER_ROW];
 		if (data.collisionData != null && !data.collisionData.equals("")) {
 			int i = 0;
-	        for (int r = 0; r < collisionMap.length; r++) {
-	            for (int c = 0; c < collisionMap[0].length; c++) {
-	            	collisionMap[r][c] = data.collisionData.charAt(i) == '1';
+	        for (int r = 0; r < COLLISION_MAP_SIZE; r++) {
+	            for (int c = 0; c < COLLISION_MAP_SIZE; c++) {
+	            	if (data.collisionData.charAt(i) == '1')
+	            		collisionBits[r * WORDS_PER_ROW + (c >> 6)] |= 1L << (c & 63);
 	            	i++;
 	            }
 	        }
@@ -71,8 +76,44 @@ public class Chunk {
 		return tiles;
 	}
 	
-	public boolean[][] getCollisionMap() {
-		return collisionMap;
+	/**
+	 * Returns true if any collision cell from startCol to endCol (inclusive) in this row collides.
+	 * Tests up to 64 cells at a time using masks.
+	 * @param row
+	 * @param startCol
+	 * @param endCol
+	 * @return
+	 */
+	public boolean collidesInRow(int row, int startCol, int endCol) {
+		int rowOffset = row * WORDS_PER_ROW;
+		int startWord = startCol >> 6;
+		int endWord = endCol >> 6;
+		for (int word = startWord; word <= endWord; word++) {
+			long mask = -1L;
+			if (word == startWord)
+				mask &= -1L << (startCol & 63);
+			if (word == endWord)
+				mask &= -1L >>> (63 - (endCol & 63));
+			
+			if ((collisionBits[rowOffset + word] & mask) != 0)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Flag this chunk to be rewritten the next time its map is saved.
+	 */
+	public void markDirty() {
+		dirty = true;
+	}
+	
+	public boolean isDirty() {
+		return dirty;
+	}
+	
+	public void clearDirty() {
+		dirty = false;
 	}
 	
 }
@@ -0,0 +1,194 @@
+package net.hollowbit.archipeloserver.world.map;
+
+import java.util.ArrayList;
+
+import net.hollowbit.archipeloserver.entity.Entity;
+import net.hollowbit.archipeloserver.entity.EntityLog;
+import net.hollowbit.archipeloshared.CollisionRect;
+import net.hollowbit.archipeloshared.Direction;
+import net.hollowbit.archipeloshared.HitCalculator;
+
+/**
+ * Finds the entities hit by an attack, rewound to the time the attacker saw them.
+ * Candidates are taken from the spatial hash around the attack, grown by how far the fastest entity on the map within the last rewind window could have moved since then,
+ * so only entities that could possibly be hit get their logs rewound.
+ * Results are written to buffers that are reused by the next query on the same thread, so don't hold on to them.
+ * @author vedi0boy
+ *
+ */
+public class EntityHitQuery {
+	
+	public static final float REWIND_MARGIN = 0.1f;//Seconds. Covers the gap between the log entries around the rewound time
+	
+	private EntitySpatialHash spatialHash;
+	private float windowMaxSpeed = 0;//Fastest any entity on the map moved during the current window
+	private float previousWindowMaxSpeed = 0;//Same, for the window before it
+	private long windowStart = System.currentTimeMillis();
+	private ThreadLocal<ArrayList<Entity>> candidatesBuffer;
+	private ThreadLocal<ArrayList<Entity>> entitiesHitBuffer;
+	private ThreadLocal<RectHits> rectHitsBuffer;
+	
+	public EntityHitQuery (EntitySpatialHash spatialHash) {
+		this.spatialHash = spatialHash;
+		candidatesBuffer = new ThreadLocal<ArrayList<Entity>>() {
+			
+			@Override
+			protected ArrayList<Entity> initialValue() {
+				return new ArrayList<Entity>();
+			}
+		
+		};
+		entitiesHitBuffer = new ThreadLocal<ArrayList<Entity>>() {
+			
+			@Override
+			protected ArrayList<Entity> initialValue() {
+				return new ArrayList<Entity>();
+			}
+		
+		};
+		rectHitsBuffer = new ThreadLocal<RectHits>() {
+			
+			@Override
+			protected RectHits initialValue() {
+				return new RectHits();
+			}
+		
+		};
+	}
+	
+	/**
+	 * Call with the speed an entity on the map moved at, so candidates are searched far enough.
+	 * @param speed
+	 */
+	public synchronized void updateMaxSpeed (float speed) {
+		rotateWindows();
+		if (speed > windowMaxSpeed)
+			windowMaxSpeed = speed;
+	}
+	
+	/**
+	 * Fastest any entity on the map moved within at least the last EntityLog.ENTRY_LIFETIME, so speeds older than any rewind stop widening queries.
+	 * @return
+	 */
+	private synchronized float getMaxSpeed () {
+		rotateWindows();
+		return Math.max(windowMaxSpeed, previousWindowMaxSpeed);
+	}
+	
+	/**
+	 * Starts a new window once the current one is EntityLog.ENTRY_LIFETIME long.
+	 */
+	private void rotateWindows () {
+		long currentTime = System.currentTimeMillis();
+		long elapsed = currentTime - windowStart;
+		if (elapsed < EntityLog.ENTRY_LIFETIME)
+			return;
+		
+		//Speeds in the current window were all recorded before it was ENTRY_LIFETIME long, so after two lifetimes none of them can still be rewound to
+		previousWindowMaxSpeed = elapsed < EntityLog.ENTRY_LIFETIME * 2 ? windowMaxSpeed : 0;
+		windowMaxSpeed = 0;
+		windowStart = currentTime;
+	}
+	
+	/**
+	 * Returns every collision rect hit by an attack, along with the entity it belongs to. An entity is listed once per rect hit.
+	 * @param attacker Is never hit by its own attack
+	 * @param x
+	 * @param y
+	 * @param range
+	 * @param direction
+	 * @param time Time to rewind entities to
+	 * @return
+	 */
+	public RectHits getRectsHit (Entity attacker, float x, float y, float range, Direction direction, long time) {
+		RectHits hits = rectHitsBuffer.get();
+		hits.clear();
+		
+		ArrayList<Entity> candidates = getCandidates(x, y, range, time);
+		for (int i = 0; i < candidates.size(); i++) {
+			Entity entity = candidates.get(i);
+			if (entity == attacker)
+				continue;
+			
+			for (String rectName : HitCalculator.getCollRectsHit(x, y, entity.getCollisionRects(time), range, direction))
+				hits.add(entity, rectName);
+		}
+		return hits;
+	}
+	
+	/**
+	 * Returns the hittable entities hit by an attack.
+	 * @param attacker Is never hit by its own attack
+	 * @param x
+	 * @param y
+	 * @param range
+	 * @param direction
+	 * @param time Time to rewind entities to
+	 * @return
+	 */
+	public ArrayList<Entity> getEntitiesHit (Entity attacker, float x, float y, float range, Direction direction, long time) {
+		ArrayList<Entity> hits = entitiesHitBuffer.get();
+		hits.clear();
+		
+		ArrayList<Entity> candidates = getCandidates(x, y, range, time);
+		for (int i = 0; i < candidates.size(); i++) {
+			Entity entity = candidates.get(i);
+			if (entity == attacker || !entity.getEntityType().isHittable())
+				continue;
+			
+			CollisionRect[] rects = entity.getCollisionRects(time);
+			if (HitCalculator.didEntityHitEntityRects(x, y, rects, range, direction))
+				hits.add(entity);
+		}
+		return hits;
+	}
+	
+	/**
+	 * Entities that were close enough to the attack to be hit at the given time.
+	 * @param x
+	 * @param y
+	 * @param range
+	 * @param time
+	 * @return
+	 */
+	private ArrayList<Entity> getCandidates (float x, float y, float range, long time) {
+		float rewindSeconds = Math.max(0, Math.min(System.currentTimeMillis() - time, EntityLog.ENTRY_LIFETIME)) / 1000f;
+		float reach = range + getMaxSpeed() * (rewindSeconds + REWIND_MARGIN);
+		return spatialHash.query(x - reach, y - reach, reach * 2, reach * 2, candidatesBuffer.get());
+	}
+	
+	/**
+	 * Pairs of entities and the names of their collision rects that were hit. Reused between queries.
+	 * @author vedi0boy
+	 *
+	 */
+	public static class RectHits {
+		
+		private ArrayList<Entity> entities = new ArrayList<Entity>();
+		private ArrayList<String> rectNames = new ArrayList<String>();
+		
+		void add (Entity entity, String rectName) {
+			entities.add(entity);
+			rectNames.add(rectName);
+		}
+		
+		void clear () {
+			entities.clear();
+			rectNames.clear();
+		}
+		
+		public int size () {
+			return entities.size();
+		}
+		
+		public Entity getEntity (int index) {
+			return entities.get(index);
+		}
+		
+		public String getRectName (int index) {
+			return rectNames.get(index);
+		}
+	
+	}
+
+}
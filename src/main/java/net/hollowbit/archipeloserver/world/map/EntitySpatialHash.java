@@ -0,0 +1,181 @@
+package net.hollowbit.archipeloserver.world.map;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import com.badlogic.gdx.utils.LongMap;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+import net.hollowbit.archipeloserver.entity.Entity;
+import net.hollowbit.archipeloserver.entity.EntityType;
+
+/**
+ * Uniform grid of the entities on a map, indexed by the box around their collision rects.
+ * Used to find the entities near an area without looping through every entity on the map.
+ * Must be told whenever an entity is added, removed or changes position.
+ * @author vedi0boy
+ *
+ */
+public class EntitySpatialHash {
+	
+	public static final int CELL_SIZE = 4 * ArchipeloServer.TILE_SIZE;//In pixels
+	
+	private LongMap<ArrayList<Entry>> cells;
+	private IdentityHashMap<Entity, Entry> entries;
+	private int queryStamp = 0;
+	
+	public EntitySpatialHash () {
+		cells = new LongMap<ArrayList<Entry>>();
+		entries = new IdentityHashMap<Entity, Entry>();
+	}
+	
+	/**
+	 * Adds an entity at its current position. Does nothing if it is already in the grid.
+	 * @param entity
+	 */
+	public synchronized void add (Entity entity) {
+		if (entries.containsKey(entity))
+			return;
+		
+		Entry entry = new Entry(entity);
+		entries.put(entity, entry);
+		entry.calculateCells();
+		addToCells(entry);
+	}
+	
+	public synchronized boolean contains (Entity entity) {
+		return entries.containsKey(entity);
+	}
+	
+	public synchronized void remove (Entity entity) {
+		Entry entry = entries.remove(entity);
+		if (entry != null)
+			removeFromCells(entry);
+	}
+	
+	/**
+	 * Call whenever an entity changes position. Only touches the grid if the entity moved into different cells.
+	 * @param entity
+	 */
+	public synchronized void update (Entity entity) {
+		Entry entry = entries.get(entity);
+		if (entry == null)
+			return;
+		
+		EntityType type = entity.getEntityType();
+		float x = entity.getLocation().getX() + type.getCollisionBoundsX();
+		float y = entity.getLocation().getY() + type.getCollisionBoundsY();
+		int minCellX = toCell(x), minCellY = toCell(y);
+		int maxCellX = toCell(x + type.getCollisionBoundsWidth()), maxCellY = toCell(y + type.getCollisionBoundsHeight());
+		if (minCellX == entry.minCellX && minCellY == entry.minCellY && maxCellX == entry.maxCellX && maxCellY == entry.maxCellY)
+			return;
+		
+		//Moved into other cells, so remove entry from its old cells and add it to the new ones
+		removeFromCells(entry);
+		entry.setCells(minCellX, minCellY, maxCellX, maxCellY);
+		addToCells(entry);
+	}
+	
+	/**
+	 * Adds all entities whose collision box may overlap the given area to the result list. Each entity is added only once.
+	 * Result list is cleared first so it can be reused between queries.
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param result
+	 * @return The result list
+	 */
+	public synchronized ArrayList<Entity> query (float x, float y, float width, float height, ArrayList<Entity> result) {
+		result.clear();
+		queryStamp++;
+		
+		int minCellX = toCell(x), minCellY = toCell(y), maxCellX = toCell(x + width), maxCellY = toCell(y + height);
+		for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+			for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+				ArrayList<Entry> cell = cells.get(getKey(cellX, cellY));
+				if (cell == null)
+					continue;
+				
+				for (int i = 0; i < cell.size(); i++) {
+					Entry entry = cell.get(i);
+					if (entry.queryStamp == queryStamp)
+						continue;//Already added from another cell
+					
+					entry.queryStamp = queryStamp;
+					result.add(entry.entity);
+				}
+			}
+		}
+		return result;
+	}
+	
+	public synchronized void clear () {
+		cells.clear();
+		entries.clear();
+	}
+	
+	private void addToCells (Entry entry) {
+		for (int cellY = entry.minCellY; cellY <= entry.maxCellY; cellY++) {
+			for (int cellX = entry.minCellX; cellX <= entry.maxCellX; cellX++) {
+				long key = getKey(cellX, cellY);
+				ArrayList<Entry> cell = cells.get(key);
+				if (cell == null) {
+					cell = new ArrayList<Entry>(4);
+					cells.put(key, cell);
+				}
+				cell.add(entry);
+			}
+		}
+	}
+	
+	private void removeFromCells (Entry entry) {
+		for (int cellY = entry.minCellY; cellY <= entry.maxCellY; cellY++) {
+			for (int cellX = entry.minCellX; cellX <= entry.maxCellX; cellX++) {
+				long key = getKey(cellX, cellY);
+				ArrayList<Entry> cell = cells.get(key);
+				if (cell == null)
+					continue;
+				
+				cell.remove(entry);
+				if (cell.isEmpty())
+					cells.remove(key);
+			}
+		}
+	}
+	
+	private static int toCell (float pixel) {
+		return (int) Math.floor(pixel / CELL_SIZE);
+	}
+	
+	private static long getKey (int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+	}
+	
+	private static class Entry {
+		
+		Entity entity;
+		int minCellX, minCellY, maxCellX, maxCellY;
+		int queryStamp = 0;
+		
+		Entry (Entity entity) {
+			this.entity = entity;
+		}
+		
+		void calculateCells () {
+			EntityType type = entity.getEntityType();
+			float x = entity.getLocation().getX() + type.getCollisionBoundsX();
+			float y = entity.getLocation().getY() + type.getCollisionBoundsY();
+			setCells(toCell(x), toCell(y), toCell(x + type.getCollisionBoundsWidth()), toCell(y + type.getCollisionBoundsHeight()));
+		}
+		
+		void setCells (int minCellX, int minCellY, int maxCellX, int maxCellY) {
+			this.minCellX = minCellX;
+			this.minCellY = minCellY;
+			this.maxCellX = maxCellX;
+			this.maxCellY = maxCellY;
+		}
+	
+	}
+
+}
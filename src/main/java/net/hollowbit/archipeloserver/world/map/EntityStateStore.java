@@ -0,0 +1,111 @@
+package net.hollowbit.archipeloserver.world.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.hollowbit.archipeloserver.entity.Entity;
+import net.hollowbit.archipeloserver.tools.entity.Location;
+
+/**
+ * Positions and directions of all entities on a map, kept in parallel primitive arrays instead of one object per entity.
+ * Each entity gets a slot while it is on the map and its Location reads and writes through to it.
+ * Freed slots are reused so the arrays stay packed. Only use it from the thread of the map it belongs to.
+ * @author vedi0boy
+ *
+ */
+public class EntityStateStore {
+	
+	public static final int NO_SLOT = -1;
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private float[] xs, ys;
+	private byte[] directions;
+	private Entity[] entities;
+	private int[] freeSlots;
+	private int freeCount = 0;
+	private int size = 0;//One past the highest slot ever used
+	
+	public EntityStateStore () {
+		xs = new float[INITIAL_CAPACITY];
+		ys = new float[INITIAL_CAPACITY];
+		directions = new byte[INITIAL_CAPACITY];
+		entities = new Entity[INITIAL_CAPACITY];
+		freeSlots = new int[INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Gives an entity a slot, starting at the given state.
+	 * @param entity
+	 * @param x
+	 * @param y
+	 * @param direction Ordinal of the direction
+	 * @return The slot
+	 */
+	public int allocate (Entity entity, float x, float y, int direction) {
+		int slot;
+		if (freeCount > 0)
+			slot = freeSlots[--freeCount];
+		else {
+			if (size == xs.length)
+				grow();
+			slot = size++;
+		}
+		
+		entities[slot] = entity;
+		xs[slot] = x;
+		ys[slot] = y;
+		directions[slot] = (byte) direction;
+		return slot;
+	}
+	
+	public void free (int slot) {
+		entities[slot] = null;
+		freeSlots[freeCount++] = slot;
+	}
+	
+	private void grow () {
+		int capacity = xs.length * 2;
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+		directions = Arrays.copyOf(directions, capacity);
+		entities = Arrays.copyOf(entities, capacity);
+		freeSlots = Arrays.copyOf(freeSlots, capacity);
+	}
+	
+	public float getX (int slot) {
+		return xs[slot];
+	}
+	
+	public float getY (int slot) {
+		return ys[slot];
+	}
+	
+	public void setPosition (int slot, float x, float y) {
+		xs[slot] = x;
+		ys[slot] = y;
+	}
+	
+	public int getDirection (int slot) {
+		return directions[slot];
+	}
+	
+	public void setDirection (int slot, int direction) {
+		directions[slot] = (byte) direction;
+	}
+	
+	/**
+	 * Adds every entity standing in the given chunk to the result list.
+	 * @param chunkX
+	 * @param chunkY
+	 * @param result
+	 * @return The result list
+	 */
+	public ArrayList<Entity> getEntitiesInChunk (int chunkX, int chunkY, ArrayList<Entity> result) {
+		for (int slot = 0; slot < size; slot++) {
+			if (entities[slot] != null && Location.toChunk(xs[slot]) == chunkX && Location.toChunk(ys[slot]) == chunkY)
+				result.add(entities[slot]);
+		}
+		return result;
+	}
+
+}
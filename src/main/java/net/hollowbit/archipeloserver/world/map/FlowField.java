@@ -0,0 +1,133 @@
+package net.hollowbit.archipeloserver.world.map;
+
+import java.util.Arrays;
+
+import net.hollowbit.archipeloserver.entity.EntityType;
+import net.hollowbit.archipeloserver.world.Map;
+import net.hollowbit.archipeloshared.Direction;
+
+/**
+ * Distances to a goal for every node in a square around it, found with a breadth first search over the tiles of a map.
+ * A node is a tile sized position of the collision box of an entity type, and it is passable if the box fits there without hitting tiles.
+ * Any entity of that type within the field can walk towards the goal by always stepping to the neighbour with the lowest distance.
+ * @author vedi0boy
+ *
+ */
+public class FlowField {
+	
+	public static final int RADIUS = 16;//In nodes
+	public static final int SIZE = RADIUS * 2 + 1;
+	private static final int UNREACHED = Integer.MAX_VALUE;
+	private static final byte UNKNOWN = 0, PASSABLE = 1, BLOCKED = 2;
+	
+	//Neighbour offsets, orthogonal ones first
+	private static final int[] NEIGHBOUR_COLS = {1, -1, 0, 0, 1, 1, -1, -1};
+	private static final int[] NEIGHBOUR_ROWS = {0, 0, 1, -1, 1, -1, 1, -1};
+	private static final Direction[] NEIGHBOUR_DIRECTIONS = {Direction.RIGHT, Direction.LEFT, Direction.UP, Direction.DOWN, Direction.UP_RIGHT, Direction.DOWN_RIGHT, Direction.UP_LEFT, Direction.DOWN_LEFT};
+	
+	private EntityType type;
+	private int goalCol, goalRow;
+	private int originCol, originRow;//Node at the bottom left of the field
+	private int[] distances;
+	private byte[] passability;
+	private int[] queue;
+	long lastUsedTick;
+	
+	public FlowField (EntityType type) {
+		this.type = type;
+		this.distances = new int[SIZE * SIZE];
+		this.passability = new byte[SIZE * SIZE];
+		this.queue = new int[SIZE * SIZE];
+	}
+	
+	/**
+	 * Recalculates the field for a new goal.
+	 * @param map
+	 * @param goalCol
+	 * @param goalRow
+	 */
+	public void build (Map map, int goalCol, int goalRow) {
+		this.goalCol = goalCol;
+		this.goalRow = goalRow;
+		this.originCol = goalCol - RADIUS;
+		this.originRow = goalRow - RADIUS;
+		Arrays.fill(distances, UNREACHED);
+		Arrays.fill(passability, UNKNOWN);
+		
+		//The goal is always reachable, even if the box doesn't fit there, so entities still get as close as they can
+		int goal = RADIUS * SIZE + RADIUS;
+		distances[goal] = 0;
+		passability[goal] = PASSABLE;
+		queue[0] = goal;
+		int head = 0, tail = 1;
+		while (head < tail) {
+			int index = queue[head++];
+			int col = index % SIZE, row = index / SIZE;
+			for (int i = 0; i < NEIGHBOUR_COLS.length; i++) {
+				int neighbourCol = col + NEIGHBOUR_COLS[i], neighbourRow = row + NEIGHBOUR_ROWS[i];
+				if (neighbourCol < 0 || neighbourRow < 0 || neighbourCol >= SIZE || neighbourRow >= SIZE)
+					continue;
+				
+				int neighbour = neighbourRow * SIZE + neighbourCol;
+				if (distances[neighbour] != UNREACHED || !isPassable(map, neighbourCol, neighbourRow))
+					continue;
+				
+				//Don't cut corners diagonally
+				if (i >= 4 && (!isPassable(map, neighbourCol, row) || !isPassable(map, col, neighbourRow)))
+					continue;
+				
+				distances[neighbour] = distances[index] + 1;
+				queue[tail++] = neighbour;
+			}
+		}
+	}
+	
+	private boolean isPassable (Map map, int col, int row) {
+		int index = row * SIZE + col;
+		if (passability[index] == UNKNOWN) {
+			float x = (originCol + col) * Pathfinder.NODE_SIZE;
+			float y = (originRow + row) * Pathfinder.NODE_SIZE;
+			passability[index] = map.collidesWithTiles(x, y, type.getCollisionBoundsWidth(), type.getCollisionBoundsHeight()) ? BLOCKED : PASSABLE;
+		}
+		return passability[index] == PASSABLE;
+	}
+	
+	/**
+	 * Returns the direction to step in from a node to get closer to the goal.
+	 * Returns null if the node is outside of the field, can't reach the goal or already is the goal.
+	 * @param col
+	 * @param row
+	 * @return
+	 */
+	public Direction getDirection (int col, int row) {
+		col -= originCol;
+		row -= originRow;
+		if (col < 0 || row < 0 || col >= SIZE || row >= SIZE)
+			return null;
+		
+		int bestDistance = distances[row * SIZE + col];
+		Direction bestDirection = null;
+		for (int i = 0; i < NEIGHBOUR_COLS.length; i++) {
+			int neighbourCol = col + NEIGHBOUR_COLS[i], neighbourRow = row + NEIGHBOUR_ROWS[i];
+			if (neighbourCol < 0 || neighbourRow < 0 || neighbourCol >= SIZE || neighbourRow >= SIZE)
+				continue;
+			
+			int distance = distances[neighbourRow * SIZE + neighbourCol];
+			if (distance >= bestDistance)
+				continue;
+			
+			//Only step diagonally where the field could have
+			if (i >= 4 && (passability[row * SIZE + neighbourCol] != PASSABLE || passability[neighbourRow * SIZE + col] != PASSABLE))
+				continue;
+			
+			bestDistance = distance;
+			bestDirection = NEIGHBOUR_DIRECTIONS[i];
+		}
+		return bestDirection;
+	}
+	
+	public boolean hasGoal (int goalCol, int goalRow) {
+		return this.goalCol == goalCol && this.goalRow == goalRow;
+	}
+
+}
@@ -0,0 +1,86 @@
+package net.hollowbit.archipeloserver.world.map;
+
+import java.util.Iterator;
+
+import com.badlogic.gdx.utils.LongMap;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+import net.hollowbit.archipeloserver.entity.Entity;
+import net.hollowbit.archipeloserver.entity.EntityType;
+import net.hollowbit.archipeloserver.tools.scheduler.TickScheduler;
+import net.hollowbit.archipeloserver.world.Map;
+import net.hollowbit.archipeloshared.Direction;
+
+/**
+ * Finds paths around tiles for entities chasing a target on a map.
+ * Keeps one flow field per target and entity type, shared by every entity of that type chasing that target.
+ * A field is only rebuilt when its target moves to another node, and dropped once nobody has used it for a while.
+ * Only use it from the thread of the map it belongs to.
+ * @author vedi0boy
+ *
+ */
+public class Pathfinder {
+	
+	public static final int NODE_SIZE = ArchipeloServer.TILE_SIZE;//In pixels
+	public static final float UNUSED_FIELD_LIFETIME = 5;//Seconds before an unused field is dropped
+	
+	private Map map;
+	private LongMap<FlowField> fields;
+	
+	public Pathfinder (Map map) {
+		this.map = map;
+		this.fields = new LongMap<FlowField>();
+	}
+	
+	/**
+	 * Returns the direction an entity should move in to get to a target without walking into tiles.
+	 * Returns null if the target is too far away for a path to be found, if there is no path, or if the entity is already there.
+	 * @param entity
+	 * @param target
+	 * @return
+	 */
+	public Direction getDirectionTowards (Entity entity, Entity target) {
+		EntityType type = entity.getEntityType();
+		
+		//Nodes are positions of the collision box, so find where the box would be if it was centered on the target's feet
+		int goalCol = toNode(target.getFootX() - type.getCollisionBoundsWidth() / 2);
+		int goalRow = toNode(target.getFootY() - type.getCollisionBoundsHeight() / 2);
+		int col = toNode(entity.getX() + type.getCollisionBoundsX());
+		int row = toNode(entity.getY() + type.getCollisionBoundsY());
+		if (Math.abs(col - goalCol) > FlowField.RADIUS || Math.abs(row - goalRow) > FlowField.RADIUS)
+			return null;
+		
+		long key = ((long) target.getHandle() << 32) | type.ordinal();
+		FlowField field = fields.get(key);
+		if (field == null) {
+			field = new FlowField(type);
+			field.build(map, goalCol, goalRow);
+			fields.put(key, field);
+		} else if (!field.hasGoal(goalCol, goalRow))
+			field.build(map, goalCol, goalRow);
+		
+		field.lastUsedTick = map.getScheduler().getCurrentTick();
+		return field.getDirection(col, row);
+	}
+	
+	/**
+	 * Drops the fields nobody used recently. Called by the map every few seconds.
+	 */
+	public void removeUnusedFields () {
+		long oldestTick = map.getScheduler().getCurrentTick() - (long) (UNUSED_FIELD_LIFETIME * TickScheduler.TICKS_PER_SECOND);
+		Iterator<FlowField> iterator = fields.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().lastUsedTick < oldestTick)
+				iterator.remove();
+		}
+	}
+	
+	public void clear () {
+		fields.clear();
+	}
+	
+	private static int toNode (float pixel) {
+		return (int) Math.floor(pixel / NODE_SIZE);
+	}
+
+}
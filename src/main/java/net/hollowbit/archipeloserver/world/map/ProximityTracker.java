@@ -0,0 +1,319 @@
+package net.hollowbit.archipeloserver.world.map;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import com.badlogic.gdx.utils.LongMap;
+
+import net.hollowbit.archipeloserver.ArchipeloServer;
+import net.hollowbit.archipeloserver.entity.Entity;
+
+/**
+ * Tells entities when other entities on the same map come close to them or go away, measured between their feet.
+ * Subscriptions are kept in a grid so a moving entity is only checked against the subscriptions around it, instead of every entity being told about every move.
+ * Must be told whenever an entity is added, removed or changes position. Only use it from the thread of the map it belongs to.
+ * @author vedi0boy
+ *
+ */
+public class ProximityTracker {
+	
+	public static final int CELL_SIZE = EntitySpatialHash.CELL_SIZE;//In pixels
+	private static final float QUERY_MARGIN = ArchipeloServer.TILE_SIZE;//Feet can stick out of collision rects a bit
+	
+	private EntitySpatialHash spatialHash;
+	private LongMap<ArrayList<Subscription>> cells;
+	private IdentityHashMap<Entity, ArrayList<Subscription>> subscriptionsByOwner;
+	private IdentityHashMap<Entity, ArrayList<Subscription>> subscriptionsContaining;//Subscriptions each entity is currently inside of
+	private ArrayList<Entity> nearbyEntities;
+	private ArrayList<Subscription> matches;//Collected before calling listeners, since they may change the subscriptions
+	
+	public ProximityTracker (EntitySpatialHash spatialHash) {
+		this.spatialHash = spatialHash;
+		cells = new LongMap<ArrayList<Subscription>>();
+		subscriptionsByOwner = new IdentityHashMap<Entity, ArrayList<Subscription>>();
+		subscriptionsContaining = new IdentityHashMap<Entity, ArrayList<Subscription>>();
+		nearbyEntities = new ArrayList<Entity>();
+		matches = new ArrayList<Subscription>();
+	}
+	
+	/**
+	 * Starts watching the area around an entity. The listener is told right away about the entities already close enough.
+	 * The owner has to be on this map.
+	 * @param owner
+	 * @param enterDistance Entities are inside once their feet come closer than this
+	 * @param leaveDistance Entities that are inside leave once their feet get further than this. Should be at least enterDistance.
+	 * @param playersOnly Whether to ignore entities that aren't players
+	 * @param listener
+	 * @return The subscription, used to unsubscribe
+	 */
+	public Subscription subscribe (Entity owner, float enterDistance, float leaveDistance, boolean playersOnly, Listener listener) {
+		Subscription subscription = new Subscription(owner, enterDistance, Math.max(enterDistance, leaveDistance), playersOnly, listener);
+		getList(subscriptionsByOwner, owner).add(subscription);
+		subscription.calculateCells();
+		addToCells(subscription);
+		refresh(subscription);
+		return subscription;
+	}
+	
+	/**
+	 * Stops watching. The listener is not told about the entities that were inside.
+	 * @param subscription
+	 */
+	public void unsubscribe (Subscription subscription) {
+		if (!subscription.active)
+			return;
+		
+		subscription.active = false;
+		removeFromCells(subscription);
+		removeFromList(subscriptionsByOwner, subscription.owner, subscription);
+		for (Entity entity : subscription.inside)
+			removeFromList(subscriptionsContaining, entity, subscription);
+		subscription.inside.clear();
+	}
+	
+	/**
+	 * Call when an entity is added to the map or changes position.
+	 * @param entity
+	 */
+	public void update (Entity entity) {
+		//Move the areas this entity owns along with it
+		ArrayList<Subscription> owned = subscriptionsByOwner.get(entity);
+		if (owned != null) {
+			matches.clear();
+			matches.addAll(owned);
+			for (int i = 0; i < matches.size(); i++) {
+				Subscription subscription = matches.get(i);
+				if (!subscription.active)
+					continue;
+				
+				if (subscription.cellsChanged()) {
+					removeFromCells(subscription);
+					subscription.calculateCells();
+					addToCells(subscription);
+				}
+				refresh(subscription);
+			}
+		}
+		
+		//Leave the areas this entity went too far from
+		ArrayList<Subscription> containing = subscriptionsContaining.get(entity);
+		if (containing != null) {
+			matches.clear();
+			for (int i = 0; i < containing.size(); i++) {
+				Subscription subscription = containing.get(i);
+				if (getDistance2(subscription.owner, entity) > subscription.leaveDistance * subscription.leaveDistance)
+					matches.add(subscription);
+			}
+			for (int i = 0; i < matches.size(); i++)
+				leave(matches.get(i), entity);
+		}
+		
+		//Enter the areas this entity came close enough to
+		ArrayList<Subscription> cell = cells.get(getKey(toCell(entity.getFootX()), toCell(entity.getFootY())));
+		if (cell != null) {
+			matches.clear();
+			for (int i = 0; i < cell.size(); i++) {
+				Subscription subscription = cell.get(i);
+				if (canEnter(subscription, entity))
+					matches.add(subscription);
+			}
+			for (int i = 0; i < matches.size(); i++)
+				enter(matches.get(i), entity);
+		}
+	}
+	
+	/**
+	 * Call when an entity is removed from the map. It leaves every area it was in and its own subscriptions are dropped.
+	 * @param entity
+	 */
+	public void remove (Entity entity) {
+		ArrayList<Subscription> owned = subscriptionsByOwner.get(entity);
+		if (owned != null) {
+			matches.clear();
+			matches.addAll(owned);
+			for (int i = 0; i < matches.size(); i++)
+				unsubscribe(matches.get(i));
+		}
+		
+		ArrayList<Subscription> containing = subscriptionsContaining.get(entity);
+		if (containing != null) {
+			matches.clear();
+			matches.addAll(containing);
+			for (int i = 0; i < matches.size(); i++)
+				leave(matches.get(i), entity);
+		}
+	}
+	
+	public void clear () {
+		cells.clear();
+		subscriptionsByOwner.clear();
+		subscriptionsContaining.clear();
+	}
+	
+	/**
+	 * Checks the entities inside a subscription after its owner moved, and looks for new ones around it.
+	 * @param subscription
+	 */
+	private void refresh (Subscription subscription) {
+		float leaveDistance2 = subscription.leaveDistance * subscription.leaveDistance;
+		for (int i = subscription.inside.size() - 1; i >= 0 && subscription.active; i--) {
+			if (i >= subscription.inside.size())
+				continue;//Listener removed some
+			
+			Entity entity = subscription.inside.get(i);
+			if (getDistance2(subscription.owner, entity) > leaveDistance2)
+				leave(subscription, entity);
+		}
+		
+		float reach = subscription.enterDistance + QUERY_MARGIN;
+		spatialHash.query(subscription.owner.getFootX() - reach, subscription.owner.getFootY() - reach, reach * 2, reach * 2, nearbyEntities);
+		for (int i = 0; i < nearbyEntities.size() && subscription.active; i++) {
+			Entity entity = nearbyEntities.get(i);
+			if (canEnter(subscription, entity))
+				enter(subscription, entity);
+		}
+	}
+	
+	private boolean canEnter (Subscription subscription, Entity entity) {
+		if (!subscription.active || entity == subscription.owner || (subscription.playersOnly && !entity.isPlayer()) || subscription.inside.contains(entity))
+			return false;
+		return getDistance2(subscription.owner, entity) < subscription.enterDistance * subscription.enterDistance;
+	}
+	
+	private void enter (Subscription subscription, Entity entity) {
+		subscription.inside.add(entity);
+		getList(subscriptionsContaining, entity).add(subscription);
+		subscription.listener.onEntityEnter(entity);
+	}
+	
+	private void leave (Subscription subscription, Entity entity) {
+		if (!subscription.inside.remove(entity))
+			return;
+		
+		removeFromList(subscriptionsContaining, entity, subscription);
+		subscription.listener.onEntityLeave(entity);
+	}
+	
+	private void addToCells (Subscription subscription) {
+		for (int cellY = subscription.minCellY; cellY <= subscription.maxCellY; cellY++) {
+			for (int cellX = subscription.minCellX; cellX <= subscription.maxCellX; cellX++) {
+				long key = getKey(cellX, cellY);
+				ArrayList<Subscription> cell = cells.get(key);
+				if (cell == null) {
+					cell = new ArrayList<Subscription>(2);
+					cells.put(key, cell);
+				}
+				cell.add(subscription);
+			}
+		}
+	}
+	
+	private void removeFromCells (Subscription subscription) {
+		for (int cellY = subscription.minCellY; cellY <= subscription.maxCellY; cellY++) {
+			for (int cellX = subscription.minCellX; cellX <= subscription.maxCellX; cellX++) {
+				long key = getKey(cellX, cellY);
+				ArrayList<Subscription> cell = cells.get(key);
+				if (cell == null)
+					continue;
+				
+				cell.remove(subscription);
+				if (cell.isEmpty())
+					cells.remove(key);
+			}
+		}
+	}
+	
+	private static ArrayList<Subscription> getList (IdentityHashMap<Entity, ArrayList<Subscription>> lists, Entity entity) {
+		ArrayList<Subscription> list = lists.get(entity);
+		if (list == null) {
+			list = new ArrayList<Subscription>(2);
+			lists.put(entity, list);
+		}
+		return list;
+	}
+	
+	private static void removeFromList (IdentityHashMap<Entity, ArrayList<Subscription>> lists, Entity entity, Subscription subscription) {
+		ArrayList<Subscription> list = lists.get(entity);
+		if (list == null)
+			return;
+		
+		list.remove(subscription);
+		if (list.isEmpty())
+			lists.remove(entity);
+	}
+	
+	private static float getDistance2 (Entity entity1, Entity entity2) {
+		float dX = entity1.getFootX() - entity2.getFootX();
+		float dY = entity1.getFootY() - entity2.getFootY();
+		return dX * dX + dY * dY;
+	}
+	
+	private static int toCell (float pixel) {
+		return (int) Math.floor(pixel / CELL_SIZE);
+	}
+	
+	private static long getKey (int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Told about entities coming close to or going away from the owner of a subscription.
+	 * @author vedi0boy
+	 *
+	 */
+	public interface Listener {
+		
+		public void onEntityEnter (Entity entity);
+		public void onEntityLeave (Entity entity);
+	
+	}
+	
+	public static class Subscription {
+		
+		private Entity owner;
+		private float enterDistance, leaveDistance;
+		private boolean playersOnly;
+		private Listener listener;
+		private ArrayList<Entity> inside;
+		private boolean active = true;
+		private int minCellX, minCellY, maxCellX, maxCellY;//Cells covered by the enter distance
+		
+		Subscription (Entity owner, float enterDistance, float leaveDistance, boolean playersOnly, Listener listener) {
+			this.owner = owner;
+			this.enterDistance = enterDistance;
+			this.leaveDistance = leaveDistance;
+			this.playersOnly = playersOnly;
+			this.listener = listener;
+			this.inside = new ArrayList<Entity>();
+		}
+		
+		void calculateCells () {
+			minCellX = toCell(owner.getFootX() - enterDistance);
+			minCellY = toCell(owner.getFootY() - enterDistance);
+			maxCellX = toCell(owner.getFootX() + enterDistance);
+			maxCellY = toCell(owner.getFootY() + enterDistance);
+		}
+		
+		/**
+		 * Whether the owner moved far enough for the subscription to cover other cells.
+		 * @return
+		 */
+		boolean cellsChanged () {
+			return toCell(owner.getFootX() - enterDistance) != minCellX || toCell(owner.getFootY() - enterDistance) != minCellY || toCell(owner.getFootX() + enterDistance) != maxCellX || toCell(owner.getFootY() + enterDistance) != maxCellY;
+		}
+		
+		/**
+		 * Entities currently inside, in the order they entered. Don't modify it.
+		 * @return
+		 */
+		public ArrayList<Entity> getEntitiesInside () {
+			return inside;
+		}
+		
+		public boolean isActive () {
+			return active;
+		}
+	
+	}
+
+}